@@ -0,0 +1,196 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import com.sun.jdi.*;
+import com.sun.jdi.connect.*;
+import com.sun.jdi.event.*;
+import com.sun.jdi.request.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import javax.json.*;
+
+import traceprinter.ramtools.CompileToBytes;
+
+/**
+ * A real debuggee for the benchmarks, held still at a breakpoint.
+ *
+ * It runs a generated program, Synthetic, whose shape is set by the
+ * benchmark parameters: a linked list of heapSize objects and an int
+ * array of arrayLength elements (both held by static fields), and a
+ * recursion recursionDepth calls deep, each frame with "locals" int
+ * locals. At the bottom of the recursion it calls snapshot(), where the
+ * breakpoint stops it, so every conversion sees the same state.
+ */
+class BenchDebuggee {
+    static final String CLASS_NAME = "Synthetic";
+
+    final VirtualMachine vm;
+    final BreakpointEvent event;
+    final JDI2JSON jdi2json;
+    final TraceSession session;
+
+    // the values of the static fields
+    final ObjectReference list;
+    final ArrayReference array;
+
+    // the step at the breakpoint; converting it again gives no step,
+    // since nothing changed
+    final JsonObject firstPoint;
+
+    BenchDebuggee(int heapSize, int arrayLength, int recursionDepth,
+                  int locals) throws Exception {
+        File classDir = compile(source(heapSize, arrayLength,
+                                       recursionDepth, locals));
+        vm = launch(classDir);
+        ClassType type = runToPrepare();
+        event = runToSnapshot(type);
+
+        session = new TraceSession(new ByteArrayOutputStream());
+        jdi2json = new JDI2JSON(vm,
+                                vm.process().getInputStream(),
+                                vm.process().getErrorStream(),
+                                Json.createObjectBuilder().build(),
+                                session);
+        for (ReferenceType rt : vm.allClasses()) {
+            if (rt.name().startsWith(CLASS_NAME)) {
+                jdi2json.addPotentiallyStaticReference(rt);
+            }
+        }
+        list = (ObjectReference)type.getValue(type.fieldByName("list"));
+        array = (ArrayReference)type.getValue(type.fieldByName("array"));
+
+        // also sets up the per-step state the other conversions rely on
+        firstPoint = convertExecutionPoint().get(0);
+    }
+
+    List<JsonObject> convertExecutionPoint() {
+        return jdi2json.convertExecutionPoint(event, event.location(),
+                                              event.thread());
+    }
+
+    void close() {
+        try {
+            vm.exit(0);
+        } catch (VMDisconnectedException e) {
+            // already gone
+        }
+        vm.process().destroyForcibly();
+    }
+
+    static String source(int heapSize, int arrayLength, int recursionDepth,
+                         int locals) {
+        StringBuilder recurse = new StringBuilder();
+        for (int i = 0; i < locals; i++) {
+            recurse.append("        int local").append(i)
+                .append(" = depth * ").append(i + 1).append(";\n");
+        }
+        return
+            "public class " + CLASS_NAME + " {\n" +
+            "    static class Node {\n" +
+            "        int value;\n" +
+            "        Node next;\n" +
+            "        Node(int value, Node next) {\n" +
+            "            this.value = value;\n" +
+            "            this.next = next;\n" +
+            "        }\n" +
+            "    }\n" +
+            "    static Node list = null;\n" +
+            "    static int[] array;\n" +
+            "    public static void main(String[] args) {\n" +
+            "        for (int i = 0; i < " + heapSize + "; i++) {\n" +
+            "            list = new Node(i, list);\n" +
+            "        }\n" +
+            "        array = new int[" + arrayLength + "];\n" +
+            "        for (int i = 0; i < array.length; i++) {\n" +
+            "            array[i] = i % 7;\n" +
+            "        }\n" +
+            "        recurse(" + recursionDepth + ");\n" +
+            "    }\n" +
+            "    static void recurse(int depth) {\n" +
+            recurse +
+            "        if (depth > 1) {\n" +
+            "            recurse(depth - 1);\n" +
+            "        } else {\n" +
+            "            snapshot();\n" +
+            "        }\n" +
+            "    }\n" +
+            "    static void snapshot() {\n" +
+            "        return;\n" +
+            "    }\n" +
+            "}\n";
+    }
+
+    /**
+     * @return A new directory holding the class files.
+     */
+    private static File compile(String source) throws IOException {
+        CompileToBytes c2b = new CompileToBytes();
+        c2b.options = Arrays.asList("-g");
+        Map<String, byte[]> bytecode = c2b.compileFile(CLASS_NAME, source);
+        if (bytecode == null) {
+            throw new IllegalStateException("Synthetic did not compile");
+        }
+        Path dir = Files.createTempDirectory("traceprinter-bench");
+        for (Map.Entry<String, byte[]> me : bytecode.entrySet()) {
+            Files.write(dir.resolve(me.getKey() + ".class"), me.getValue());
+        }
+        return dir.toFile();
+    }
+
+    private static VirtualMachine launch(File classDir) throws Exception {
+        LaunchingConnector connector = InMemory.theCommandLineLaunchConnector();
+        Map<String, Connector.Argument> args = connector.defaultArguments();
+        args.get("main").setValue(CLASS_NAME);
+        args.get("options").setValue("-cp " + classDir.getPath() + " -Xmx512M");
+        return connector.launch(args);
+    }
+
+    private ClassType runToPrepare() throws InterruptedException {
+        ClassPrepareRequest cpr = vm.eventRequestManager().createClassPrepareRequest();
+        cpr.addClassFilter(CLASS_NAME);
+        cpr.enable();
+        while (true) {
+            EventSet eventSet = vm.eventQueue().remove();
+            for (Event e : eventSet) {
+                if (e instanceof ClassPrepareEvent) {
+                    cpr.disable();
+                    // left suspended for the breakpoint
+                    return (ClassType)((ClassPrepareEvent)e).referenceType();
+                }
+            }
+            eventSet.resume();
+        }
+    }
+
+    private BreakpointEvent runToSnapshot(ClassType type) throws InterruptedException {
+        Location snapshot = type.methodsByName("snapshot").get(0).location();
+        BreakpointRequest br = vm.eventRequestManager().createBreakpointRequest(snapshot);
+        br.enable();
+        vm.resume();
+        while (true) {
+            EventSet eventSet = vm.eventQueue().remove();
+            for (Event e : eventSet) {
+                if (e instanceof BreakpointEvent) {
+                    // never resumed: the benchmarks look at this state
+                    return (BreakpointEvent)e;
+                }
+            }
+            eventSet.resume();
+        }
+    }
+}
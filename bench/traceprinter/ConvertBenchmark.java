@@ -0,0 +1,98 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The per-step work of JDI2JSON, against a debuggee held at a breakpoint
+ * (see BenchDebuggee). Every parameter changes the shape of the state
+ * being converted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvertBenchmark {
+    @Param({"10", "1000"})
+    public int heapSize;
+
+    @Param({"10", "5000"})
+    public int arrayLength;
+
+    @Param({"1", "15"})
+    public int recursionDepth;
+
+    @Param({"2", "20"})
+    public int locals;
+
+    private BenchDebuggee debuggee;
+    private JsonObject ep;
+    private long epFingerprint;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        debuggee = new BenchDebuggee(heapSize, arrayLength, recursionDepth, locals);
+        ep = debuggee.firstPoint;
+        epFingerprint = JDI2JSON.fingerprint(ep);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        debuggee.close();
+    }
+
+    @Benchmark
+    public JsonValue convertValue() {
+        return debuggee.jdi2json.convertValue(debuggee.list);
+    }
+
+    @Benchmark
+    public JsonValue convertObject() {
+        return debuggee.jdi2json.convertObject(debuggee.list, true);
+    }
+
+    @Benchmark
+    public JsonArray convertArray() {
+        return debuggee.jdi2json.convertArray(debuggee.array);
+    }
+
+    @Benchmark
+    public JsonObject convertHeap() {
+        // the heap starts from the objects referred to so far
+        debuggee.jdi2json.convertValue(debuggee.list);
+        debuggee.jdi2json.convertValue(debuggee.array);
+        return debuggee.jdi2json.convertHeap().build();
+    }
+
+    @Benchmark
+    public boolean reallyChanged() {
+        // the worst case, where nothing changed: the fingerprints agree,
+        // so the steps are compared in full as well
+        return JDI2JSON.reallyChanged(ep, epFingerprint,
+                                      ep, JDI2JSON.fingerprint(ep));
+    }
+
+    @Benchmark
+    public List<JsonObject> convertExecutionPoint() {
+        return debuggee.convertExecutionPoint();
+    }
+}
@@ -0,0 +1,92 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter.ramtools;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * CompileToBytes.compileFiles on typical submissions, set up the way
+ * InMemory does it, without a CompileCache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CompileBenchmark {
+    static final Map<String, String[][]> SUBMISSIONS = new HashMap<>();
+    static {
+        SUBMISSIONS.put("hello", new String[][] {{"Hello",
+            "public class Hello {\n" +
+            "    public static void main(String[] args) {\n" +
+            "        System.out.println(\"Hello, world!\");\n" +
+            "    }\n" +
+            "}\n"}});
+        SUBMISSIONS.put("classes", new String[][] {{"Main",
+            "import java.util.*;\n" +
+            "public class Main {\n" +
+            "    public static void main(String[] args) {\n" +
+            "        List<Dog> dogs = new ArrayList<>();\n" +
+            "        for (int i = 0; i < 3; i++) dogs.add(new Dog(\"d\" + i, i));\n" +
+            "        for (Dog d : dogs) d.feed(1);\n" +
+            "        Collections.sort(dogs, (a, b) -> a.hunger - b.hunger);\n" +
+            "    }\n" +
+            "}\n"}, {"Dog",
+            "public class Dog {\n" +
+            "    int hunger;\n" +
+            "    private String name;\n" +
+            "    Dog(String name, int hunger) {\n" +
+            "        this.name = name;\n" +
+            "        this.hunger = hunger;\n" +
+            "    }\n" +
+            "    void feed(int food) {\n" +
+            "        hunger -= food;\n" +
+            "        System.out.println(name + \" is this hungry: \" + hunger);\n" +
+            "    }\n" +
+            "}\n"}});
+        SUBMISSIONS.put("compileError", new String[][] {{"Broken",
+            "public class Broken {\n" +
+            "    public static void main(String[] args) {\n" +
+            "        int x = \"not a number\";\n" +
+            "    }\n" +
+            "}\n"}});
+    }
+
+    @Param({"hello", "classes", "compileError"})
+    public String submission;
+
+    private CompileToBytes c2b;
+    private String[][] files;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        c2b = new CompileToBytes();
+        c2b.compilerOutput = new StringWriter();
+        c2b.options = Arrays.asList("-g", "-Xmaxerrs", "1");
+        files = SUBMISSIONS.get(submission);
+    }
+
+    @Benchmark
+    public Map<String, byte[]> compileFiles() {
+        c2b.diagnosticListener = new DiagnosticCollector<>();
+        return c2b.compileFiles(files);
+    }
+}
@@ -1,7 +1,7 @@
 #!/bin/sh
 # To run, pipe a JSON string into this puppy
 
-CLASSPATH="build:$JAVA_HOME/lib/tools.jar:jar/javax.json-1.0.jar"
+CLASSPATH="build:$JAVA_HOME/lib/tools.jar:jar/javax.json-1.0.jar:jar/asm-9.8.jar:jar/asm-tree-9.8.jar"
 # Since JAVA_HOME might differ from the executable path
 JAVA="$JAVA_HOME/jre/bin/java"
 cat | $JAVA -cp $CLASSPATH $FLAGS traceprinter.InMemory
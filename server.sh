@@ -0,0 +1,9 @@
+#!/bin/sh
+# Long-lived trace server: send one JSON job per line (same format as run.sh)
+# and read back one trace per line. Pass "--port N" to listen on localhost:N
+# instead of stdin/stdout.
+
+CLASSPATH="build:$JAVA_HOME/lib/tools.jar:jar/javax.json-1.0.jar:jar/asm-9.8.jar:jar/asm-tree-9.8.jar"
+# Since JAVA_HOME might differ from the executable path
+JAVA="$JAVA_HOME/jre/bin/java"
+$JAVA -cp $CLASSPATH $FLAGS traceprinter.TraceServer "$@"
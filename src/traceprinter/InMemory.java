@@ -21,6 +21,7 @@ import com.sun.jdi.connect.*;
 
 import java.util.regex.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.io.*;
 
 import javax.tools.*;
@@ -30,6 +31,10 @@ import traceprinter.ramtools.*;
 import javax.json.*;
 
 public class InMemory {
+    // where build.xml puts traceprinter.shoelace.Recorder, which only the
+    // debuggee's ByteClassLoader loads; relative, like the policy file
+    static final String RECORDER_PATH = "build/recorder";
+
     private List<FakeFile> sourceFiles = new ArrayList<>();
 
     JsonObject optionsObject;
@@ -37,10 +42,10 @@ public class InMemory {
     String givenStdin;
     String mainClass;
     VirtualMachine vm;
-    static String stdin;
     Map<String, byte[]> bytecode;
-
-    public final static long startTime = System.currentTimeMillis();
+    // the rewritten classes, with the "instrumented" tracing strategy
+    Instrumenter instrumenter = null;
+    TraceSession session;
 
     public static String getFileContents(String filename) {
         StringBuilder result = new StringBuilder();
@@ -58,8 +63,15 @@ public class InMemory {
 
 
     public static void main(String[] args) {
+        TraceSession session = new TraceSession(System.out);
 
-        JDI2JSON.userlog("Debugger VM maxMemory: " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + "M");
+        // a single job only benefits from a cache kept on disk
+        String cacheDir = System.getProperty("traceprinter.compileCacheDir");
+        if (cacheDir != null) {
+            session.compileCache = new CompileCache(1, new File(cacheDir));
+        }
+
+        session.userlog("Debugger VM maxMemory: " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + "M");
 
         // just a sanity check, can the debugger VM see this NoopMain?
         traceprinter.shoelace.NoopMain.main(null);
@@ -69,45 +81,42 @@ public class InMemory {
         // reliably pass on to the debuggee.
 
         try {
-            new InMemory(Json.createReader(
-                new InputStreamReader(System.in, "UTF-8")).readObject());
+            long began = TraceMetrics.begin();
+            JsonObject frontend_data = Json.createReader(
+                new InputStreamReader(System.in, "UTF-8")).readObject();
+            session.metrics.end(TraceMetrics.Phase.PARSE, began);
+            new InMemory(frontend_data, session);
         } catch (IOException e) {
             String message = "Internal IOException in php->java";
-            System.out.print(JDI2JSON.compileErrorOutput(message));
-        }
-    }
-
-    void printUTF8String(String str) {
-        try {
-            PrintStream out = new PrintStream(System.out, true, "UTF-8");
-            out.print(str);
-        } catch (UnsupportedEncodingException e) { //fallback
-            System.out.print(str);
+            session.output.finishWithError("internal_error", message);
         }
     }
 
-    // Convenience methods for JDI2JSON methods
+    // Convenience methods for TraceOutput methods
     void printCompileError(String msg, String file, long row, long col) {
-        JsonObject json = JDI2JSON.compileErrorOutput(msg, file, row, col);
-        printUTF8String(json.toString());
+        session.output.finishWithError("compile_error", msg, file, row, col);
     }
     void printCompileError(String msg) {
-        JsonObject json = JDI2JSON.compileErrorOutput(msg);
-        printUTF8String(json.toString());
+        session.output.finishWithError("compile_error", msg);
     }
 
     // figure out the class name, then compile and run main([])
-    InMemory(JsonObject frontend_data) {
+    // returns once the trace has been written to the session
+    InMemory(JsonObject frontend_data, TraceSession session) {
+        this.session = session;
         this.optionsObject = frontend_data.getJsonObject("options");
         this.argsArray = frontend_data.getJsonArray("args");
         this.givenStdin = frontend_data.getJsonString("stdin").getString();
-        stdin = this.givenStdin;
+        session.stdin = this.givenStdin;
+        session.showMetrics = optionsObject.getBoolean("metrics", false);
+        session.output.setStreaming(
+            optionsObject.getBoolean("streamTrace", false));
         try {
             this.sourceFiles = FakeFile.parseJsonFiles(
                 frontend_data.getJsonArray("files"));
         } catch (FakeFile.NameException ex) {
             printCompileError(ex.getMessage());
-            System.exit(0);
+            return;
         }
         // FIXME kind of a hack for now
         this.mainClass = sourceFiles.get(0).getName();
@@ -117,10 +126,17 @@ public class InMemory {
             ( ! frontend_data.isNull("visualizer_args"));
         if (hasVisualizerArgs) {
             JsonObject args = frontend_data.getJsonObject("visualizer_args");
-            setupVisualizerArgs(args);
+            try {
+                setupVisualizerArgs(args);
+            } catch (IllegalArgumentException ex) {
+                printCompileError(ex.getMessage());
+                return;
+            }
         }
 
-        CompileToBytes c2b = new CompileToBytes();
+        session.startBudget();
+
+        final CompileToBytes c2b = new CompileToBytes();
 
         c2b.compilerOutput = new StringWriter();
         //,"-classpath",System.getProperty("java.class.path"));
@@ -128,40 +144,170 @@ public class InMemory {
 
         DiagnosticCollector<JavaFileObject> errorCollector = new DiagnosticCollector<>();
         c2b.diagnosticListener = errorCollector;
+        c2b.cache = session.compileCache;
 
-        String[][] fileInfo = FakeFile.fakeFileListToPairArray(this.sourceFiles);
-        bytecode = c2b.compileFiles(fileInfo);
+        final String[][] fileInfo = FakeFile.fakeFileListToPairArray(this.sourceFiles);
+        long began = TraceMetrics.begin();
+        try {
+            bytecode = Watchdog.callWithin("compile", session.maxCompileSeconds,
+                                           session.deadline(),
+                new Callable<Map<String, byte[]>>() {
+                    @Override
+                    public Map<String, byte[]> call() {
+                        return c2b.compileFiles(fileInfo);
+                    }
+                }, null);
+        } catch (Watchdog.OutOfTimeException e) {
+            stopAtLimit(e.getMessage());
+            return;
+        } finally {
+            session.metrics.end(TraceMetrics.Phase.COMPILE, began);
+        }
 
         if (bytecode == null) {
             exitWithErrorCollector(errorCollector);
         } else {
+            if (optionsObject.getString("tracingStrategy", "step")
+                .equals("instrumented")) {
+                instrumenter = instrument();
+            }
             startDebuggerVM();
         }
     }
 
+    /**
+     * @return The user's classes rewritten for the recorder, or null if
+     * the program has to be traced with breakpoints instead.
+     */
+    private Instrumenter instrument() {
+        String reason;
+        if (optionsObject.getBoolean("multiThreaded", false)) {
+            reason = "multiThreaded";
+        } else if (optionsObject.getBoolean("showAllFields", false)) {
+            reason = "showAllFields";
+        } else if (session.traceStart != null || session.traceStop != null) {
+            reason = "TRACE_START or TRACE_STOP";
+        } else {
+            try {
+                return new Instrumenter(bytecode);
+            } catch (Instrumenter.UnsupportedException e) {
+                reason = e.getMessage();
+            } catch (RuntimeException e) {
+                reason = e.toString();
+            }
+        }
+        session.userlog("Can't trace this program instrumented (" + reason +
+                        "); using breakpoints");
+        return null;
+    }
+
     private void setupVisualizerArgs(JsonObject args) {
         if (args.getJsonNumber("MAX_STEPS") != null) {
-            JSONTracingThread.MAX_STEPS = args.getJsonNumber(
+            session.maxSteps = args.getJsonNumber(
                 "MAX_STEPS").intValue();
         }
         if (args.getJsonNumber("MAX_STACK_SIZE") != null) {
-            JSONTracingThread.MAX_STACK_SIZE = args.getJsonNumber(
+            session.maxStackSize = args.getJsonNumber(
                 "MAX_STACK_SIZE").intValue();
         }
         if (args.getJsonNumber("MAX_WALLTIME_SECONDS") != null) {
-            JSONTracingThread.MAX_WALLTIME_SECONDS = args.getJsonNumber(
+            session.maxWalltimeSeconds = args.getJsonNumber(
                 "MAX_WALLTIME_SECONDS").intValue();
         }
+        if (args.getJsonNumber("MAX_COMPILE_SECONDS") != null) {
+            session.maxCompileSeconds = args.getJsonNumber(
+                "MAX_COMPILE_SECONDS").doubleValue();
+        }
+        if (args.getJsonNumber("MAX_LAUNCH_SECONDS") != null) {
+            session.maxLaunchSeconds = args.getJsonNumber(
+                "MAX_LAUNCH_SECONDS").doubleValue();
+        }
+        if (args.getJsonNumber("MAX_ARRAY_LENGTH") != null) {
+            session.maxArrayLength = args.getJsonNumber(
+                "MAX_ARRAY_LENGTH").intValue();
+        }
+        if (args.getJsonNumber("ARRAY_WINDOW") != null) {
+            session.arrayWindow = args.getJsonNumber(
+                "ARRAY_WINDOW").intValue();
+        }
+        if (args.containsKey("TRACE_START")) {
+            session.traceStart = TracePoint.parse(
+                "TRACE_START", args.get("TRACE_START"));
+        }
+        if (args.containsKey("TRACE_STOP")) {
+            session.traceStop = TracePoint.parse(
+                "TRACE_STOP", args.get("TRACE_STOP"));
+        }
+    }
+
+    /**
+     * Ends a job that ran out of time before it got to tracing.
+     */
+    private void stopAtLimit(String message) {
+        session.output.addStep(JDI2JSON.limitEvent(message));
+        session.output.finish("time_limit");
     }
 
     private void startDebuggerVM() {
-        vm = launchVM("traceprinter.shoelace.NoopMain");
+        long began = TraceMetrics.begin();
+        final VMPool pool = session.vmPool;
+        try {
+            vm = Watchdog.callWithin("launch", session.maxLaunchSeconds,
+                                     session.deadline(),
+                new Callable<VirtualMachine>() {
+                    @Override
+                    public VirtualMachine call() {
+                        return pool != null ? pool.claim() : launchVM(VMPool.MAIN_CLASS);
+                    }
+                },
+                new Watchdog.Leftover<VirtualMachine>() {
+                    @Override
+                    public void discard(VirtualMachine late) {
+                        if (late != null) {
+                            late.process().destroyForcibly();
+                        }
+                    }
+                });
+        } catch (Watchdog.OutOfTimeException e) {
+            stopAtLimit(e.getMessage());
+            return;
+        } finally {
+            session.metrics.end(TraceMetrics.Phase.LAUNCH, began);
+        }
+        if (vm == null) {
+            // launchVM (or the pool) already said why on stderr
+            session.output.finishWithError("internal_error", "Internal error: " +
+                " there was an error starting the debuggee VM.");
+            return;
+        }
         vm.setDebugTraceMode(0);
 
         JSONTracingThread tt = new JSONTracingThread(this);
         tt.start();
 
-        vm.resume();
+        // the debuggee is resumed by the tracing thread, with the event
+        // set of its VMStartEvent; resuming it here as well could undo
+        // the suspension of a class prepare that came in between
+        long deadline = session.deadline();
+
+        try {
+            tt.join(Watchdog.millisUntil(deadline));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (tt.isAlive()) {
+            // the tracing thread didn't stop in time (a JDI call that
+            // doesn't return, a debuggee that never stops, ...), so the
+            // trace ends without it; it dies with the debuggee
+            tt.stopAtDeadline();
+            return;
+        }
+
+        if (tt.fellBack()) {
+            instrumenter = null;
+            startDebuggerVM();
+        }
     }
 
     private void exitWithErrorCollector(
@@ -179,13 +325,14 @@ public class InMemory {
             long columnNumber = Math.max(0, err.getColumnNumber());
 
             printCompileError(message, fileName, lineNumber, columnNumber);
-            System.exit(0);
+            return;
         }
         printCompileError("Compiler did not work, but reported no ERROR?!?!");
-        System.exit(0);
     }
 
-    VirtualMachine launchVM(String className) {
+    // nothing here may write to System.out, which is where TraceServer
+    // writes its results
+    static VirtualMachine launchVM(String className) {
         LaunchingConnector connector = theCommandLineLaunchConnector();
         try {
 
@@ -240,38 +387,38 @@ http://docs.oracle.com/javase/7/docs/jdk/api/jpda/jdi/com/sun/jdi/connect/Connec
 	    //System.out.println("...done");
             return result;
         } catch (VMStartException exc) {
-	    System.out.println("Hoeyx!");
-            System.out.println("Failed in launchTarget: " + exc.getMessage());
-            exc.printStackTrace();
+	    System.err.println("Hoeyx!");
+            System.err.println("Failed in launchTarget: " + exc.getMessage());
+            exc.printStackTrace(System.err);
 	    byte[] b = new byte[100000];
-	    System.out.println(exc.process().exitValue());
+	    System.err.println(exc.process().exitValue());
 	    try {
 		BufferedReader in = new BufferedReader(new InputStreamReader(exc.process().getErrorStream()));
 		String inputLine;
 		while ((inputLine = in.readLine()) != null)
-		    System.out.println(inputLine);
+		    System.err.println(inputLine);
 		in = new BufferedReader(new InputStreamReader(exc.process().getInputStream()));
 		while ((inputLine = in.readLine()) != null)
-		    System.out.println(inputLine);
+		    System.err.println(inputLine);
 
 	    }
 	    catch (java.io.IOException excx) {
-		System.out.println("Crud");
+		System.err.println("Crud");
 	    }
         } catch (java.io.IOException exc) {
-            System.out.println("Failed in launchTarget: " + exc.getMessage());
-            exc.printStackTrace();
+            System.err.println("Failed in launchTarget: " + exc.getMessage());
+            exc.printStackTrace(System.err);
         } catch (IllegalConnectorArgumentsException exc) {
-	    System.out.println("Hoeyy!");
+	    System.err.println("Hoeyy!");
             for (String S : exc.argumentNames()) {
-                System.out.println(S);
+                System.err.println(S);
             }
-            System.out.println(exc);
+            System.err.println(exc);
         }
         return null; // when caught
     }
 
-    LaunchingConnector theCommandLineLaunchConnector() {
+    static LaunchingConnector theCommandLineLaunchConnector() {
         for (Connector connector :
                  Bootstrap.virtualMachineManager().allConnectors())
             if (connector.name().equals("com.sun.jdi.CommandLineLaunch"))
@@ -0,0 +1,824 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Rewrites the user's classes for the "instrumented" tracing strategy.
+ *
+ * Each method is made to tell traceprinter.shoelace.Recorder when it is
+ * entered, when it gets to a new line (wherever the "breakpoints"
+ * strategy would set a breakpoint), before it returns, and before each
+ * call that might run user code. The recorder renders the steps inside
+ * the debuggee, so everything JDI would have looked up in the class files
+ * (line numbers, the names and scopes of locals, ...) is worked out here
+ * and handed over as the text of config().
+ *
+ * Programs the recorder can't trace the way JDI does are refused with an
+ * UnsupportedException, and traced with breakpoints instead.
+ */
+class Instrumenter implements Opcodes {
+    static final String RECORDER = "traceprinter.shoelace.Recorder";
+    private static final String RECORDER_NAME = "traceprinter/shoelace/Recorder";
+    private static final String VALUES = "[Ljava/lang/Object;";
+
+    static class UnsupportedException extends Exception {
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    // the user's classes, by internal name ("pkg/Outer$Inner")
+    private Map<String, ClassNode> classes = new LinkedHashMap<>();
+    private Map<String, byte[]> rewritten = new TreeMap<>();
+
+    // where each label was in the original code
+    private Map<LabelNode, Integer> offsets = new IdentityHashMap<>();
+
+    private StringBuilder config = new StringBuilder();
+    private int methodCount = 0;
+    private int siteCount = 0;
+    private Map<String, Layout> layouts = new HashMap<>();
+
+    // what the JDK classes the user's code calls look like
+    private Map<String, Boolean> finalTypes = new HashMap<>();
+    private Map<String, Set<String>> builtinMethods = new HashMap<>();
+
+    /**
+     * @param bytecode The compiled classes, by binary name.
+     */
+    Instrumenter(Map<String, byte[]> bytecode) throws UnsupportedException {
+        for (byte[] b : bytecode.values()) {
+            ClassNode cn = new ClassNode();
+            ClassReader reader = new ClassReader(b);
+            reader.accept(cn, 0);
+            readOffsets(cn, reader);
+            classes.put(cn.name, cn);
+            config.append("C\t").append(cn.name.replace('/', '.')).append('\n');
+        }
+        for (String className : bytecode.keySet()) {
+            ClassNode cn = classes.get(className.replace('.', '/'));
+            if (cn.sourceFile == null) {
+                throw new UnsupportedException(className + " has no source file name");
+            }
+            for (MethodNode mn : cn.methods) {
+                rewrite(cn, mn);
+            }
+            try {
+                ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+                cn.accept(cw);
+                rewritten.put(className, cw.toByteArray());
+            } catch (RuntimeException e) {
+                // most likely a method that grew past 64K
+                throw new UnsupportedException("can't rewrite " + className + ": " + e);
+            }
+        }
+        verify();
+    }
+
+    /**
+     * @return The rewritten classes, by binary name.
+     */
+    Map<String, byte[]> classes() {
+        return rewritten;
+    }
+
+    /**
+     * @return Everything the recorder needs to know about the user's
+     * code. One entry per line, with tab-separated fields:
+     *
+     *   C class                   a rewritten class (binary name)
+     *   M id flags class name desc funcName file returnKind
+     *                             a method; flags has s for static, c for
+     *                             constructors, i for static initializers,
+     *                             a for accessors and b for methods that
+     *                             builtin code might call back
+     *   L id kinds entries order indices
+     *                             how to show the locals at a site; see
+     *                             Layout
+     *   S id method line layout callee calleeFlags
+     *                             a place a hook is called from; see site()
+     */
+    String config() {
+        return config.toString();
+    }
+
+    boolean isInstrumented(String className) {
+        return rewritten.containsKey(className);
+    }
+
+    /**
+     * Labels only learn their offsets when they are written, so the class
+     * is written once unchanged (sharing the constant pool of the
+     * original, which keeps every instruction the same size).
+     */
+    private void readOffsets(ClassNode cn, ClassReader reader) {
+        cn.accept(new ClassWriter(reader, 0));
+        for (MethodNode mn : cn.methods) {
+            for (AbstractInsnNode insn : mn.instructions) {
+                if (insn instanceof LabelNode) {
+                    LabelNode label = (LabelNode)insn;
+                    offsets.put(label, label.getLabel().getOffset());
+                    // so that writing the rewritten class starts afresh
+                    label.resetLabel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Links the rewritten classes in a throwaway class loader, so that any
+     * mistake shows up as a VerifyError here, rather than in the debuggee.
+     */
+    private void verify() throws UnsupportedException {
+        ClassLoader loader = new ClassLoader(Instrumenter.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] b = rewritten.get(name);
+                if (b == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, b, 0, b.length);
+            }
+        };
+        for (String name : rewritten.keySet()) {
+            try {
+                // listing the methods links the class, which verifies it
+                Class.forName(name, false, loader).getDeclaredMethods();
+            } catch (ClassNotFoundException | LinkageError e) {
+                throw new UnsupportedException("the rewritten " + name +
+                                               " does not verify: " + e);
+            }
+        }
+    }
+
+    private void rewrite(ClassNode cn, MethodNode mn) throws UnsupportedException {
+        if ((mn.access & (ACC_ABSTRACT | ACC_NATIVE)) != 0) {
+            return;
+        }
+        for (AbstractInsnNode insn : mn.instructions) {
+            if (insn instanceof InvokeDynamicInsnNode) {
+                throw new UnsupportedException("lambdas and method references");
+            }
+            if (insn.getOpcode() == JSR || insn.getOpcode() == RET) {
+                throw new UnsupportedException("subroutines");
+            }
+            if (insn instanceof MethodInsnNode) {
+                MethodInsnNode min = (MethodInsnNode)insn;
+                if (min.owner.startsWith("java/lang/reflect/") ||
+                    min.owner.startsWith("java/lang/invoke/") ||
+                    min.owner.startsWith("java/beans/") ||
+                    min.owner.equals("java/lang/ClassLoader") ||
+                    (min.owner.equals("java/lang/Class") &&
+                     (min.name.equals("newInstance") || min.name.equals("forName") ||
+                      min.name.equals("getClassLoader")))) {
+                    throw new UnsupportedException("reflection");
+                }
+            }
+            if (namesTraceprinter(insn)) {
+                throw new UnsupportedException("code that uses traceprinter");
+            }
+        }
+        new MethodRewrite(cn, mn, methodCount++).run();
+    }
+
+    /**
+     * The recorder's hooks are public, for the rewritten classes to call,
+     * so the user's code must not be able to get at them: not by name
+     * (checked here), and not through the class loader that resolves them
+     * for the rewritten classes (the "reflection" above). The debuggee
+     * has no other way to find the recorder; see ByteClassLoader.
+     */
+    private static boolean namesTraceprinter(AbstractInsnNode insn) {
+        String name;
+        if (insn instanceof MethodInsnNode) {
+            name = ((MethodInsnNode)insn).owner;
+        } else if (insn instanceof FieldInsnNode) {
+            name = ((FieldInsnNode)insn).owner;
+        } else if (insn instanceof TypeInsnNode) {
+            name = ((TypeInsnNode)insn).desc;
+        } else if (insn instanceof MultiANewArrayInsnNode) {
+            name = ((MultiANewArrayInsnNode)insn).desc;
+        } else if (insn instanceof LdcInsnNode &&
+                   ((LdcInsnNode)insn).cst instanceof Type) {
+            name = ((Type)((LdcInsnNode)insn).cst).getDescriptor();
+        } else {
+            return false;
+        }
+        // an internal name, or the descriptor of an array
+        return name.replaceFirst("^\\[*L", "").startsWith("traceprinter/");
+    }
+
+    /**
+     * The locals shown at some place in a method, and how they are
+     * captured there.
+     *
+     * The values of the captured slots are passed to the recorder in an
+     * array. Each entry of the layout shows one of them:
+     *
+     *   A,capture,name    an argument with a name
+     *   P,capture,param#i an argument without a name (see
+     *                     JDI2JSON.convertFrame)
+     *   E,-1,?            where JDI can't read the arguments at all
+     *   V,capture,name    a local visible there
+     *
+     * The entries are in the order of "encoded_locals"; order lists the V
+     * entries in the order of "ordered_varnames", and indices the captures
+     * whose values might be array indices (see
+     * JDI2JSON.getIndexCandidates).
+     */
+    private static class Layout {
+        int id;
+        int[] slots;
+        char[] kinds;
+    }
+
+    private class MethodRewrite {
+        private ClassNode cn;
+        private MethodNode mn;
+        private int id;
+        private boolean isStatic, isConstructor, isAccessor;
+
+        private AbstractInsnNode[] insns;
+        private Map<AbstractInsnNode, Integer> positions = new IdentityHashMap<>();
+        // the line of each instruction, and whether it starts one
+        private int[] lines;
+        private boolean[] lineStarts;
+
+        // the locals JDI knows about, without "this"
+        private List<LocalVariableNode> variables = new ArrayList<>();
+        private Type[] argTypes;
+        private int argSlots;
+        // false if JDI would show the arguments as param#0 and so on
+        private boolean completedArgs;
+        // true if some arguments are missing from a local variable table,
+        // which makes JDI fail to read any of them (JDWP error 35)
+        private boolean argsUnreadable;
+
+        MethodRewrite(ClassNode cn, MethodNode mn, int id) {
+            this.cn = cn;
+            this.mn = mn;
+            this.id = id;
+            isStatic = (mn.access & ACC_STATIC) != 0;
+            isConstructor = mn.name.equals("<init>");
+            isAccessor = mn.name.contains("access$");
+
+            insns = mn.instructions.toArray();
+            lines = new int[insns.length];
+            lineStarts = new boolean[insns.length];
+            int line = -1;
+            boolean starting = false;
+            for (int i = 0; i < insns.length; i++) {
+                positions.put(insns[i], i);
+                if (insns[i] instanceof LineNumberNode) {
+                    // of several entries for the same place, JDI keeps the last
+                    line = ((LineNumberNode)insns[i]).line;
+                    starting = true;
+                } else if (insns[i].getOpcode() >= 0) {
+                    lines[i] = line;
+                    lineStarts[i] = starting;
+                    starting = false;
+                }
+            }
+
+            argTypes = Type.getArgumentTypes(mn.desc);
+            argSlots = isStatic ? 0 : 1;
+            for (Type t : argTypes) {
+                argSlots += t.getSize();
+            }
+            int named = 0;
+            if (mn.localVariables != null) {
+                for (LocalVariableNode lv : mn.localVariables) {
+                    if (lv.name.equals("this") || lv.name.startsWith("this$")) {
+                        continue;
+                    }
+                    variables.add(lv);
+                    if (lv.index < argSlots) {
+                        named++;
+                    }
+                }
+            }
+            if (mn.localVariables != null && ! mn.localVariables.isEmpty()) {
+                int slot = isStatic ? 0 : 1;
+                for (Type t : argTypes) {
+                    argsUnreadable |= ! hasVariable(slot);
+                    slot += t.getSize();
+                }
+            }
+            completedArgs = mn.localVariables != null &&
+                ! mn.localVariables.isEmpty() && named == argTypes.length &&
+                ! argsUnreadable;
+
+            String flags = (isStatic ? "s" : "") + (isConstructor ? "c" : "") +
+                (mn.name.equals("<clinit>") ? "i" : "") + (isAccessor ? "a" : "") +
+                (mayBeCalledBack(cn, mn) ? "b" : "");
+            String className = cn.name.replace('/', '.');
+            config.append("M\t").append(id).append('\t').append(flags)
+                .append('\t').append(className)
+                .append('\t').append(mn.name)
+                .append('\t').append(mn.desc)
+                .append('\t').append(isConstructor ? className : mn.name)
+                .append('\t').append(cn.sourceFile)
+                .append('\t').append(kind(Type.getReturnType(mn.desc).getDescriptor()))
+                .append('\n');
+        }
+
+        void run() throws UnsupportedException {
+            Set<Integer> handlers = new HashSet<>();
+            for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+                handlers.add(nextInstruction(positions.get(tcb.handler)));
+            }
+
+            // the classes of the objects being created, innermost first;
+            // an <init> call with none pending is the super(...) or
+            // this(...) call of a constructor
+            Deque<String> created = new ArrayDeque<>();
+            AbstractInsnNode superCall = null;
+
+            for (int i = 0; i < insns.length; i++) {
+                AbstractInsnNode insn = insns[i];
+                int op = insn.getOpcode();
+                if (op < 0) continue;
+
+                InsnList hooks = new InsnList();
+                if (handlers.contains(i)) {
+                    hooks.add(new InsnNode(DUP));
+                    push(hooks, id);
+                    hooks.add(recorderCall("caught", "(Ljava/lang/Throwable;I)V"));
+                }
+                if (lineStarts[i] && ! isAccessor) {
+                    hooks.add(hook("line", i, "", ""));
+                }
+
+                if (op >= IRETURN && op <= RETURN) {
+                    hooks.add(exitHook(i, op));
+                } else if (op == NEW) {
+                    String type = ((TypeInsnNode)insn).desc;
+                    created.push(type);
+                    if (initializesOther(type)) {
+                        hooks.add(hook("call", i, "", ""));
+                    }
+                } else if (op == GETSTATIC || op == PUTSTATIC) {
+                    if (initializesOther(((FieldInsnNode)insn).owner)) {
+                        hooks.add(hook("call", i, "", ""));
+                    }
+                } else if (insn instanceof MethodInsnNode) {
+                    MethodInsnNode min = (MethodInsnNode)insn;
+                    String callee = min.name + min.desc;
+                    boolean userOwner = classes.containsKey(min.owner);
+                    String flags = (userOwner ? "u" : "b") +
+                        (op == INVOKESTATIC || op == INVOKESPECIAL ? "s" : "v");
+                    if (op == INVOKESPECIAL && min.name.equals("<init>")) {
+                        if ( ! created.isEmpty()) {
+                            created.pop();
+                            if (userOwner) {
+                                hooks.add(constructHook(i, min.owner, callee, flags));
+                            } else if (mayRunUserCode(min)) {
+                                hooks.add(hook("call", i, callee, flags));
+                            }
+                        } else if (isConstructor && superCall == null) {
+                            superCall = insn;
+                            hooks.add(hook("call", i, callee, flags + "t"));
+                        } else {
+                            throw new UnsupportedException("unexpected <init> call in " + mn.name);
+                        }
+                    } else if (mayRunUserCode(min)) {
+                        hooks.add(hook("call", i, callee, flags));
+                    }
+                    if (exits(min)) {
+                        hooks.add(recorderCall("flush", "()V"));
+                    }
+                }
+
+                if (hooks.size() > 0) {
+                    if (op == NEW) {
+                        keepNewLabel(i, hooks);
+                    }
+                    mn.instructions.insertBefore(insn, hooks);
+                }
+            }
+
+            if (superCall != null) {
+                InsnList hooks = new InsnList();
+                hooks.add(new VarInsnNode(ALOAD, 0));
+                hooks.add(recorderCall("initialized", "(Ljava/lang/Object;)V"));
+                mn.instructions.insert(superCall, hooks);
+            }
+
+            InsnList enter = new InsnList();
+            push(enter, id);
+            if (isStatic || isConstructor) {
+                // "this" can't be passed on before super(...) returns
+                enter.add(new InsnNode(ACONST_NULL));
+            } else {
+                enter.add(new VarInsnNode(ALOAD, 0));
+            }
+            enter.add(recorderCall("enter", "(ILjava/lang/Object;)V"));
+            mn.instructions.insert(enter);
+        }
+
+        private int nextInstruction(int i) {
+            while (insns[i].getOpcode() < 0) i++;
+            return i;
+        }
+
+        /**
+         * Stack map frames refer to an object under construction by the
+         * label of its NEW instruction, so hooks put in front of a NEW must
+         * not come between the NEW and that label.
+         */
+        private void keepNewLabel(int i, InsnList hooks) {
+            LabelNode old = null;
+            for (int j = i - 1; j >= 0 && insns[j].getOpcode() < 0; j--) {
+                if (insns[j] instanceof LabelNode) {
+                    old = (LabelNode)insns[j];
+                    break;
+                }
+            }
+            if (old == null) return;
+            LabelNode moved = new LabelNode();
+            hooks.add(moved);
+            for (AbstractInsnNode insn : insns) {
+                if (insn instanceof FrameNode) {
+                    FrameNode frame = (FrameNode)insn;
+                    replace(frame.local, old, moved);
+                    replace(frame.stack, old, moved);
+                }
+            }
+        }
+
+        private void replace(List<Object> types, Object old, Object moved) {
+            if (types == null) return;
+            for (int i = 0; i < types.size(); i++) {
+                if (types.get(i) == old) {
+                    types.set(i, moved);
+                }
+            }
+        }
+
+        // NEW and static field accesses can initialize another user class
+        private boolean initializesOther(String owner) {
+            return classes.containsKey(owner) && ! owner.equals(cn.name);
+        }
+
+        private InsnList hook(String name, int i, String callee, String calleeFlags) {
+            InsnList result = new InsnList();
+            Layout layout = layout(i);
+            push(result, site(i, layout, callee, calleeFlags));
+            addValues(result, layout);
+            result.add(recorderCall(name, "(I" + VALUES + ")V"));
+            return result;
+        }
+
+        private InsnList constructHook(int i, String type, String callee, String calleeFlags) {
+            InsnList result = new InsnList();
+            Layout layout = layout(i);
+            result.add(new LdcInsnNode(Type.getObjectType(type)));
+            push(result, site(i, layout, callee, calleeFlags));
+            addValues(result, layout);
+            result.add(recorderCall("construct", "(Ljava/lang/Class;I" + VALUES + ")V"));
+            return result;
+        }
+
+        private InsnList exitHook(int i, int op) {
+            InsnList result = new InsnList();
+            if (op == RETURN) {
+                result.add(new InsnNode(ACONST_NULL));
+            } else {
+                char kind = kind(Type.getReturnType(mn.desc).getDescriptor());
+                result.add(new InsnNode(kind == 'J' || kind == 'D' ? DUP2 : DUP));
+                box(result, kind);
+            }
+            Layout layout = layout(i);
+            push(result, site(i, layout, "", ""));
+            addValues(result, layout);
+            result.add(recorderCall("exit", "(Ljava/lang/Object;I" + VALUES + ")V"));
+            return result;
+        }
+
+        /**
+         * Adds an "S" entry to the config.
+         *
+         * @param callee The name and descriptor of the method called
+         * there, if any.
+         * @param calleeFlags For calls: u if the owner is a user class (b
+         * otherwise), s for static and special calls (v otherwise), and t
+         * for the super(...) or this(...) call of a constructor.
+         */
+        private int site(int i, Layout layout, String callee, String calleeFlags) {
+            int site = siteCount++;
+            config.append("S\t").append(site)
+                .append('\t').append(id)
+                .append('\t').append(lines[i])
+                .append('\t').append(layout.id)
+                .append('\t').append(callee)
+                .append('\t').append(calleeFlags)
+                .append('\n');
+            return site;
+        }
+
+        // from the LocalVariableTable: in scope at instruction i
+        private boolean hasVariable(int slot) {
+            for (LocalVariableNode lv : mn.localVariables) {
+                if (lv.index == slot) return true;
+            }
+            return false;
+        }
+
+        private boolean isVisible(LocalVariableNode lv, int i) {
+            return positions.get(lv.start) < i && i < positions.get(lv.end);
+        }
+
+        /**
+         * Works out what JDI2JSON.convertFrame would show at instruction
+         * i; see Layout.
+         */
+        private Layout layout(int i) {
+            List<String> captures = new ArrayList<>();
+            List<String> entries = new ArrayList<>();
+            for (LocalVariableNode lv : variables) {
+                if (lv.index < argSlots) {
+                    entries.add("A," + capture(captures, lv.index, kind(lv.desc)) + "," + lv.name);
+                }
+            }
+            if (argsUnreadable) {
+                entries.add("E,-1,?");
+            } else if ( ! completedArgs) {
+                int slot = isStatic ? 0 : 1;
+                for (int p = 0; p < argTypes.length; p++) {
+                    entries.add("P," + capture(captures, slot, kind(argTypes[p].getDescriptor())) +
+                                ",param#" + p);
+                    slot += argTypes[p].getSize();
+                }
+            }
+
+            // ordered like LocalVariable.hashCode() orders them
+            TreeMap<Integer, Integer> order = new TreeMap<>();
+            int start0 = 0, slot0 = 0;
+            for (LocalVariableNode lv : variables) {
+                if (lv.index < argSlots || lv.name.endsWith("$") || ! isVisible(lv, i)) {
+                    continue;
+                }
+                int start = offsets.get(lv.start);
+                if (order.isEmpty()) {
+                    start0 = start;
+                    slot0 = lv.index;
+                }
+                order.put(((start - start0) << 4) + (lv.index - slot0), entries.size());
+                entries.add("V," + capture(captures, lv.index, kind(lv.desc)) + "," + lv.name);
+            }
+
+            Set<Integer> indices = new TreeSet<>();
+            for (LocalVariableNode lv : variables) {
+                if (lv.desc.length() == 1 && "ISBJ".indexOf(lv.desc.charAt(0)) >= 0 &&
+                    isVisible(lv, i)) {
+                    indices.add(capture(captures, lv.index, kind(lv.desc)));
+                }
+            }
+
+            StringBuilder kinds = new StringBuilder();
+            for (String c : captures) {
+                kinds.append(c.charAt(c.length() - 1));
+            }
+            String text = kinds + "\t" + join(entries, ";") + "\t" +
+                join(order.values(), ",") + "\t" + join(indices, ",");
+            Layout layout = layouts.get(text);
+            if (layout == null) {
+                layout = new Layout();
+                layout.id = layouts.size();
+                layout.slots = new int[captures.size()];
+                layout.kinds = kinds.toString().toCharArray();
+                for (int c = 0; c < captures.size(); c++) {
+                    String capture = captures.get(c);
+                    layout.slots[c] = Integer.parseInt(capture.substring(0, capture.indexOf(':')));
+                }
+                layouts.put(text, layout);
+                config.append("L\t").append(layout.id).append('\t').append(text).append('\n');
+            }
+            return layout;
+        }
+
+        private int capture(List<String> captures, int slot, char kind) {
+            String capture = slot + ":" + kind;
+            int index = captures.indexOf(capture);
+            if (index < 0) {
+                index = captures.size();
+                captures.add(capture);
+            }
+            return index;
+        }
+
+        private void addValues(InsnList il, Layout layout) {
+            if (layout.slots.length == 0) {
+                il.add(new InsnNode(ACONST_NULL));
+                return;
+            }
+            push(il, layout.slots.length);
+            il.add(new TypeInsnNode(ANEWARRAY, "java/lang/Object"));
+            for (int c = 0; c < layout.slots.length; c++) {
+                il.add(new InsnNode(DUP));
+                push(il, c);
+                il.add(new VarInsnNode(loadOpcode(layout.kinds[c]), layout.slots[c]));
+                box(il, layout.kinds[c]);
+                il.add(new InsnNode(AASTORE));
+            }
+        }
+    }
+
+    /**
+     * @return True unless the call can only run JDK code.
+     */
+    private boolean mayRunUserCode(MethodInsnNode min) {
+        if (classes.containsKey(min.owner)) return true;
+        if (min.owner.startsWith("[")) return false;  // clone() of an array
+        int op = min.getOpcode();
+        if (op == INVOKESPECIAL && ! min.name.equals("<init>")) {
+            return true;  // super.method(...), which may call overrides
+        }
+        if ((op == INVOKEVIRTUAL || op == INVOKEINTERFACE) && ! isFinalBuiltin(min.owner)) {
+            return true;
+        }
+        for (Type t : Type.getArgumentTypes(min.desc)) {
+            // a Class lets JDK code (Enum.valueOf, ...) call the class
+            if (t.getDescriptor().equals("Ljava/lang/Class;")) return true;
+            if ( ! cannotBeUserObject(t)) return true;
+        }
+        return false;
+    }
+
+    private boolean cannotBeUserObject(Type t) {
+        if (t.getSort() == Type.ARRAY) {
+            return cannotBeUserObject(t.getElementType());
+        }
+        return t.getSort() != Type.OBJECT || isFinalBuiltin(t.getInternalName());
+    }
+
+    private boolean isFinalBuiltin(String internalName) {
+        Boolean result = finalTypes.get(internalName);
+        if (result == null) {
+            result = false;
+            if ( ! classes.containsKey(internalName)) {
+                Class<?> c = builtinClass(internalName);
+                result = c != null && Modifier.isFinal(c.getModifiers());
+            }
+            finalTypes.put(internalName, result);
+        }
+        return result;
+    }
+
+    private static Class<?> builtinClass(String internalName) {
+        try {
+            return Class.forName(internalName.replace('/', '.'), false,
+                                 Instrumenter.class.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static boolean exits(MethodInsnNode min) {
+        return (min.owner.equals("java/lang/System") && min.name.equals("exit")) ||
+            (min.owner.equals("java/lang/Runtime") &&
+             (min.name.equals("exit") || min.name.equals("halt")));
+    }
+
+    /**
+     * @return True if JDK code might call the method: if it overrides or
+     * implements a method of a JDK class or interface (toString,
+     * compareTo, run, ...).
+     */
+    private boolean mayBeCalledBack(ClassNode cn, MethodNode mn) {
+        if ((mn.access & (ACC_STATIC | ACC_PRIVATE)) != 0 || mn.name.startsWith("<")) {
+            return false;
+        }
+        Set<String> inherited = builtinMethods(cn.name);
+        return inherited == null ||
+            inherited.contains(mn.name + mn.desc.substring(0, mn.desc.indexOf(')') + 1));
+    }
+
+    /**
+     * @return The names and parameter descriptors of the methods the type
+     * gets from JDK supertypes, or null if they aren't known.
+     */
+    private Set<String> builtinMethods(String internalName) {
+        if (builtinMethods.containsKey(internalName)) {
+            return builtinMethods.get(internalName);
+        }
+        Set<String> result = new HashSet<>();
+        ClassNode cn = classes.get(internalName);
+        if (cn != null) {
+            List<String> supertypes = new ArrayList<>(cn.interfaces);
+            if (cn.superName != null) {
+                supertypes.add(cn.superName);
+            }
+            for (String supertype : supertypes) {
+                Set<String> inherited = builtinMethods(supertype);
+                if (inherited == null) {
+                    result = null;
+                    break;
+                }
+                result.addAll(inherited);
+            }
+        } else {
+            Class<?> c = builtinClass(internalName);
+            if (c == null) {
+                result = null;
+            } else {
+                addMethods(c, result);
+            }
+        }
+        builtinMethods.put(internalName, result);
+        return result;
+    }
+
+    private static void addMethods(Class<?> c, Set<String> result) {
+        for (java.lang.reflect.Method m : c.getDeclaredMethods()) {
+            if ((m.getModifiers() & (Modifier.STATIC | Modifier.PRIVATE)) == 0) {
+                String desc = Type.getMethodDescriptor(m);
+                result.add(m.getName() + desc.substring(0, desc.indexOf(')') + 1));
+            }
+        }
+        if (c.getSuperclass() != null) {
+            addMethods(c.getSuperclass(), result);
+        }
+        for (Class<?> i : c.getInterfaces()) {
+            addMethods(i, result);
+        }
+    }
+
+    /* bytecode helpers */
+
+    // the kinds of values: the descriptor letter of primitives, L for
+    // references and V for void
+    private static char kind(String desc) {
+        char c = desc.charAt(0);
+        return c == '[' ? 'L' : c;
+    }
+
+    private static int loadOpcode(char kind) {
+        switch (kind) {
+        case 'J': return LLOAD;
+        case 'F': return FLOAD;
+        case 'D': return DLOAD;
+        case 'L': return ALOAD;
+        default: return ILOAD;
+        }
+    }
+
+    private static void box(InsnList il, char kind) {
+        String wrapper;
+        switch (kind) {
+        case 'Z': wrapper = "java/lang/Boolean"; break;
+        case 'B': wrapper = "java/lang/Byte"; break;
+        case 'C': wrapper = "java/lang/Character"; break;
+        case 'S': wrapper = "java/lang/Short"; break;
+        case 'I': wrapper = "java/lang/Integer"; break;
+        case 'J': wrapper = "java/lang/Long"; break;
+        case 'F': wrapper = "java/lang/Float"; break;
+        case 'D': wrapper = "java/lang/Double"; break;
+        default: return;
+        }
+        il.add(new MethodInsnNode(INVOKESTATIC, wrapper, "valueOf",
+                                  "(" + kind + ")L" + wrapper + ";", false));
+    }
+
+    private static void push(InsnList il, int n) {
+        if (n >= -1 && n <= 5) {
+            il.add(new InsnNode(ICONST_0 + n));
+        } else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+            il.add(new IntInsnNode(BIPUSH, n));
+        } else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+            il.add(new IntInsnNode(SIPUSH, n));
+        } else {
+            il.add(new LdcInsnNode(n));
+        }
+    }
+
+    private static MethodInsnNode recorderCall(String name, String desc) {
+        return new MethodInsnNode(INVOKESTATIC, RECORDER_NAME, name, desc, false);
+    }
+
+    private static String join(Collection<?> items, String separator) {
+        StringBuilder result = new StringBuilder();
+        for (Object item : items) {
+            if (result.length() > 0) result.append(separator);
+            result.append(item);
+        }
+        return result.toString();
+    }
+}
@@ -19,42 +19,120 @@ import com.sun.jdi.request.*;
 import com.sun.jdi.event.*;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.math.*;
 import javax.json.*;
 
 public class JDI2JSON {
     private class InputPuller {
-        InputStreamReader vm_link;
-        StringWriter contents = new java.io.StringWriter();
+        InputStream vm_link;
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // bytes read from the pipe that aren't in contents yet; the first
+        // undecoded of them are released already, but end in the middle
+        // of a character
+        byte[] pending = new byte[2048];
+        int pendingLength = 0;
+        int undecoded = 0;
+        // how many bytes have been released to contents in all
+        long released = 0;
+        // everything read so far, or with incrementalStdout, everything
+        // read since the last takeAppended()
+        StringBuilder contents = new StringBuilder();
+        // contents as a String, kept until more output arrives
+        String cached = "";
         String getContents() {
-            return contents.toString();
+            if (cached == null) {
+                cached = contents.toString();
+            }
+            return cached;
+        }
+        /**
+         * @return The output read since the last call, which is then
+         * forgotten.
+         */
+        String takeAppended() {
+            if (contents.length() == 0) {
+                return "";
+            }
+            String result = contents.toString();
+            contents.setLength(0);
+            cached = "";
+            return result;
         }
         InputPuller(InputStream ir) {
+            vm_link = ir;
+        }
+        /**
+         * Reads what the pipe has, without showing it yet, so that the
+         * debuggee doesn't block on a full pipe.
+         */
+        void readAhead() {
             try {
-                vm_link = new InputStreamReader(ir, "UTF-8");
+                int count;
+                while (vm_link.available() > 0 &&
+                       (count = readSome()) > 0) {
+                    pendingLength += count;
+                }
             }
-            catch (UnsupportedEncodingException e) {
-                throw new RuntimeException("Encoding error!");
+            catch(IOException e) {
+                throw new RuntimeException("I/O Error!");
+            }
+        }
+        private int readSome() throws IOException {
+            if (pendingLength == pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
             }
+            return vm_link.read(pending, pendingLength, pending.length - pendingLength);
         }
+        /**
+         * Adds everything the debuggee has written so far.
+         */
         void pull() {
-            int BUFFER_SIZE = 2048;
-            char[] cbuf = new char[BUFFER_SIZE];
-            int count;
+            readAhead();
+            release(pendingLength - undecoded);
+        }
+        /**
+         * Adds the output up to the given number of bytes in all, waiting
+         * for it if it's still on its way.
+         */
+        void pullTo(long total) {
             try {
-                while (vm_link.ready()
-                        && ((count = vm_link.read(cbuf, 0, BUFFER_SIZE)) >= 0)) {
-                    contents.write(cbuf, 0, count);
-                        }
+                int count;
+                while (released + pendingLength - undecoded < total &&
+                       (count = readSome()) > 0) {
+                    pendingLength += count;
+                }
             }
             catch(IOException e) {
                 throw new RuntimeException("I/O Error!");
             }
+            release((int)Math.min(total - released, pendingLength - undecoded));
+        }
+        private void release(int count) {
+            if (count <= 0) return;
+            ByteBuffer in = ByteBuffer.wrap(pending, 0, undecoded + count);
+            CharBuffer out = CharBuffer.allocate(undecoded + count);
+            decoder.decode(in, out, false);
+            out.flip();
+            if (out.length() > 0) {
+                contents.append(out);
+                cached = null;
+            }
+            undecoded = in.remaining();
+            int used = in.position();
+            System.arraycopy(pending, used, pending, 0, pendingLength - used);
+            pendingLength -= used;
+            released += count;
         }
     }
 
     private VirtualMachine vm;
     private InputPuller stdout, stderr;
     private JsonObject last_ep = null;
+    private long last_fingerprint;
     private TreeMap<Long, ObjectReference> heap;
     private TreeSet<Long> heap_done;
 
@@ -64,17 +142,47 @@ public class JDI2JSON {
 
     public ReferenceType stdinRT = null;
 
-    public static StringBuilder userlogged;
+    private TraceSession session;
 
     public static boolean showVoid = true;
 
     boolean showStringsAsValues = false;
     boolean showAllFields = false;
+    // steps carry what was printed since the last step, not all of it
+    boolean incrementalStdout = false;
+    // steps also show the stacks of the other threads
+    boolean multiThreaded = false;
+
+    // per thread, since threads can take turns between a return and the
+    // next step of the same thread
+    private Map<ThreadReference, Value> lastReturnValues = new HashMap<>();
+
+    /**
+     * Where the ids of objects come from, if not from JDI.
+     */
+    interface ObjectIds {
+        long idOf(ObjectReference obj);
+    }
+
+    // with the "instrumented" tracing strategy, the recorder's ids, so
+    // that the steps the debugger makes itself agree with its records
+    ObjectIds objectIds = null;
+    // Json.createObjectBuilder looks up the provider every time, which
+    // would be most of the work of a record
+    private static final JsonBuilderFactory builders =
+        Json.createBuilderFactory(null);
 
-    private Value lastReturnValue = null;
+    // the thread of the execution point being converted
+    private ThreadReference currentThread;
+    // values of the integer locals in currentThread, which are likely
+    // array indices; found the first time a step needs them
+    private Set<Long> indexCandidates;
 
     public JDI2JSON(VirtualMachine vm, InputStream vm_stdout,
-            InputStream vm_stderr, JsonObject optionsObject) {
+            InputStream vm_stderr, JsonObject optionsObject,
+            TraceSession session) {
+        this.vm = vm;
+        this.session = session;
         stdout = new InputPuller(vm_stdout);
         stderr = new InputPuller(vm_stderr);
         if (optionsObject.containsKey("showStringsAsValues")) {
@@ -84,11 +192,12 @@ public class JDI2JSON {
         if (optionsObject.containsKey("showAllFields")) {
             showAllFields = optionsObject.getBoolean("showAllFields");
         }
-    }
-
-    public static void userlog(String S) {
-        if (userlogged == null) userlogged = new StringBuilder();
-        userlogged.append(S).append("\n");
+        if (optionsObject.containsKey("incrementalStdout")) {
+            incrementalStdout = optionsObject.getBoolean("incrementalStdout");
+        }
+        if (optionsObject.containsKey("multiThreaded")) {
+            multiThreaded = optionsObject.getBoolean("multiThreaded");
+        }
     }
 
     /**
@@ -122,23 +231,31 @@ public class JDI2JSON {
 
         ArrayList<JsonObject> results = new ArrayList<>();
 
-        if (loc.method().name().indexOf("access$") >= 0) {
+        if (kindOf(loc.method()) == CodeKind.ACCESSOR) {
             // don't visualize synthetic access$000 methods
             return results;
         }
 
         heap_done = new TreeSet<Long>();
         heap = new TreeMap<>();
+        currentThread = thread;
+        indexCandidates = null;
 
         JsonValue returnValue = null;
 
-        JsonObjectBuilder result = Json.createObjectBuilder();
-        result.add("stdout", stdout.getContents());
+        JsonObjectBuilder result = builders.createObjectBuilder();
+        String stdoutAppended = "", stderrAppended = "";
+        if (incrementalStdout) {
+            stdoutAppended = stdout.takeAppended();
+            stderrAppended = stderr.takeAppended();
+        } else {
+            result.add("stdout", stdout.getContents());
+        }
 
         // Used to keep track of objects passing as return values.
+        Value lastReturnValue = lastReturnValues.remove(thread);
         if (lastReturnValue != null) {
             result.add("last_return_value", convertValue(lastReturnValue));
-            lastReturnValue = null;
         }
 
         if (e instanceof MethodExitEvent) {
@@ -147,8 +264,10 @@ public class JDI2JSON {
             result.add("event", "return");
             addLocationLineAndFileToJson(loc, result);
 
-            lastReturnValue =
-                lastReturnValueFromExitEvent((MethodExitEvent)e, thread);
+            Value exitValue = lastReturnValueFromExitEvent((MethodExitEvent)e, thread);
+            if (exitValue != null) {
+                lastReturnValues.put(thread, exitValue);
+            }
         } else if (e instanceof BreakpointEvent || e instanceof StepEvent) {
             result.add("event", "step_line");
             addLocationLineAndFileToJson(loc, result);
@@ -167,6 +286,11 @@ public class JDI2JSON {
         result.add("stack_to_render", generateStackFrameJson(
             thread, returnValue));
 
+        if (multiThreaded) {
+            result.add("thread", thread.name());
+            result.add("threads", convertOtherThreads(thread));
+        }
+
         if (stdinRT != null && stdinRT.isInitialized()) {
             int stdinPosition = ((IntegerValue)stdinRT.getValue(stdinRT.fieldByName("position"))).value();
             result.add("stdinPosition", stdinPosition);
@@ -177,23 +301,149 @@ public class JDI2JSON {
         result.add("func_name", getFormattedMethodName(loc.method()));
         result.add("heap", convertHeap());
 
-        JsonObject this_ep = result.build();
-        if (reallyChanged(last_ep, this_ep)) {
-            results.add(this_ep);
-            last_ep = this_ep;
+        addIfChanged(results, result.build(), stdoutAppended, stderrAppended);
+        return results;
+    }
+
+    /**
+     * Like convertExecutionPoint, for a record written by
+     * traceprinter.shoelace.Recorder with the "instrumented" tracing
+     * strategy. Records are steps, except that they say how many bytes of
+     * output ("out" and "err") had been written by then, instead of the
+     * output itself, and that their frames have no ids.
+     */
+    public ArrayList<JsonObject> convertRecordedPoint(JsonObject record) {
+        stdout.pullTo(record.getJsonNumber("out").longValue());
+        stderr.pullTo(record.getJsonNumber("err").longValue());
+
+        ArrayList<JsonObject> results = new ArrayList<>();
+        JsonObjectBuilder result = builders.createObjectBuilder();
+        String stdoutAppended = "", stderrAppended = "";
+        if (incrementalStdout) {
+            stdoutAppended = stdout.takeAppended();
+            stderrAppended = stderr.takeAppended();
+        } else {
+            result.add("stdout", stdout.getContents());
+        }
+
+        for (Map.Entry<String, JsonValue> me : record.entrySet()) {
+            String key = me.getKey();
+            if (key.equals("out") || key.equals("err")) {
+                continue;
+            }
+            if (key.equals("stack_to_render")) {
+                JsonArrayBuilder frames = builders.createArrayBuilder();
+                for (JsonValue frame : (JsonArray)me.getValue()) {
+                    frame_ticker++;
+                    JsonObjectBuilder withIds = builders.createObjectBuilder();
+                    for (Map.Entry<String, JsonValue> fe : ((JsonObject)frame).entrySet()) {
+                        withIds.add(fe.getKey(), fe.getValue());
+                    }
+                    frames.add(withIds
+                               .add("unique_hash", ""+frame_ticker)
+                               .add("frame_id", frame_ticker));
+                }
+                result.add(key, frames);
+            } else {
+                result.add(key, me.getValue());
+            }
         }
+
+        addIfChanged(results, result.build(), stdoutAppended, stderrAppended);
         return results;
     }
 
+    /**
+     * Reads ahead the output of the debuggee; see InputPuller.readAhead.
+     */
+    void readOutputAhead() {
+        stdout.readAhead();
+        stderr.readAhead();
+    }
+
+    /**
+     * Sets what the next step of the thread shows as its
+     * last_return_value.
+     */
+    void setLastReturnValue(ThreadReference thread, Value value) {
+        if (value == null) {
+            lastReturnValues.remove(thread);
+        } else {
+            lastReturnValues.put(thread, value);
+        }
+    }
+
+    /**
+     * Adds the execution point to results, unless nothing but the frame
+     * ids changed since the last one (and nothing was printed).
+     */
+    private void addIfChanged(List<JsonObject> results, JsonObject this_ep,
+            String stdoutAppended, String stderrAppended) {
+        long this_fingerprint = fingerprint(this_ep);
+        boolean printed = ! stdoutAppended.isEmpty() || ! stderrAppended.isEmpty();
+        if (printed ||
+            reallyChanged(last_ep, last_fingerprint, this_ep, this_fingerprint)) {
+            results.add(printed
+                        ? withAppendedOutput(this_ep, stdoutAppended, stderrAppended)
+                        : this_ep);
+            last_ep = this_ep;
+            last_fingerprint = this_fingerprint;
+        } else {
+            session.metrics.suppressed++;
+        }
+    }
+
+    /**
+     * Adds "stdout_append" and "stderr_append" to an execution point.
+     *
+     * They are left out of last_ep, since new output alone is enough to
+     * tell that something changed.
+     */
+    private static JsonObject withAppendedOutput(JsonObject ep,
+            String stdoutAppended, String stderrAppended) {
+        JsonObjectBuilder result = builders.createObjectBuilder();
+        if ( ! stdoutAppended.isEmpty()) {
+            result.add("stdout_append", stdoutAppended);
+        }
+        if ( ! stderrAppended.isEmpty()) {
+            result.add("stderr_append", stderrAppended);
+        }
+        for (Map.Entry<String, JsonValue> me : ep.entrySet()) {
+            result.add(me.getKey(), me.getValue());
+        }
+        return result.build();
+    }
+
+    /**
+     * Lists the stacks of the threads other than the given one, leaving
+     * out those that aren't running any user code.
+     *
+     * They must be suspended too; see JSONTracingThread.
+     */
+    private JsonArrayBuilder convertOtherThreads(ThreadReference thread) {
+        JsonArrayBuilder threads = builders.createArrayBuilder();
+        for (ThreadReference t : vm.allThreads()) {
+            if (t.equals(thread) || t.status() == ThreadReference.THREAD_STATUS_ZOMBIE) {
+                continue;
+            }
+            JsonArray frames = generateStackFrameJson(t, null).build();
+            if (frames.isEmpty()) continue;
+            threads.add(builders.createObjectBuilder()
+                        .add("name", t.name())
+                        .add("stack_to_render", frames));
+        }
+        return threads;
+    }
+
     /**
      * Searches for global (static) variables in staticListable.
      */
     private void addGlobalFieldsToJson(JsonObjectBuilder json) {
-        JsonObjectBuilder globals = Json.createObjectBuilder();
-        JsonArrayBuilder orderedGlobals = Json.createArrayBuilder();
+        JsonObjectBuilder globals = builders.createObjectBuilder();
+        JsonArrayBuilder orderedGlobals = builders.createArrayBuilder();
 
         for (ReferenceType rt : staticListable) {
-            if (rt.isPrepared() && ! in_builtin_package(rt.name())) {
+            if (rt.isPrepared() && kindOf(rt) != CodeKind.BUILTIN) {
                 // All the direct class fields - not inherited fields
                 for (Field f : rt.fields()) {
                     if (f.isStatic()) {
@@ -243,7 +493,7 @@ public class JDI2JSON {
      */
     private JsonArrayBuilder generateStackFrameJson(ThreadReference thread,
             JsonValue returnValue) {
-        JsonArrayBuilder frames = Json.createArrayBuilder();
+        JsonArrayBuilder frames = builders.createArrayBuilder();
         StackFrame lastNonUserFrame = null;
         try {
             boolean firstFrame = true;
@@ -273,7 +523,7 @@ public class JDI2JSON {
 
     // input format: [package.]ClassName:lineno or [package.]ClassName
     public boolean in_builtin_package(String line) {
-        final String[] builtin_packages = {"java", "javax", "sun", "com.sun", "traceprinter"};
+        final String[] builtin_packages = {"java", "javax", "sun", "com.sun", "jdk", "traceprinter"};
 
         line = line.split(":")[0];
         for (String badPrefix : builtin_packages) {
@@ -284,10 +534,52 @@ public class JDI2JSON {
         return false;
     }
 
+    /**
+     * What kind of code a type or method holds, as far as tracing is
+     * concerned.
+     */
+    enum CodeKind {
+        USER,      // the code being traced
+        BUILTIN,   // the JDK, and traceprinter itself
+        LAMBDA,    // classes generated for lambdas
+        ACCESSOR   // synthetic access$000 methods of user classes
+    }
+
+    // events and stack frames ask about the same few types and methods
+    // on every step, so the answers are kept
+    private Map<ReferenceType, CodeKind> typeKinds = new HashMap<>();
+    private Map<Method, CodeKind> methodKinds = new HashMap<>();
+
+    CodeKind kindOf(ReferenceType rt) {
+        CodeKind kind = typeKinds.get(rt);
+        if (kind == null) {
+            String name = rt.name();
+            if (in_builtin_package(name)) {
+                kind = CodeKind.BUILTIN;
+            } else if (name.contains("$$Lambda$")) {
+                kind = CodeKind.LAMBDA;
+            } else {
+                kind = CodeKind.USER;
+            }
+            typeKinds.put(rt, kind);
+        }
+        return kind;
+    }
+
+    CodeKind kindOf(Method method) {
+        CodeKind kind = methodKinds.get(method);
+        if (kind == null) {
+            kind = kindOf(method.declaringType());
+            if (kind == CodeKind.USER && method.name().indexOf("access$") >= 0) {
+                kind = CodeKind.ACCESSOR;
+            }
+            methodKinds.put(method, kind);
+        }
+        return kind;
+    }
+
     private boolean showFramesInLocation(Location loc) {
-        return ( ! in_builtin_package(loc.toString())
-                && ! loc.method().name().contains("$access"));
-        // skip synthetic accessor methods
+        return kindOf(loc.method()) != CodeKind.BUILTIN;
     }
 
     private boolean showGuts(ReferenceType rt) {
@@ -296,16 +588,13 @@ public class JDI2JSON {
     }
 
     public boolean reportEventsAtLocation(Location loc) {
-        if (in_builtin_package(loc.toString())) {
-            return false;
-        }
-
-        if (loc.toString().contains("$$Lambda$")) {
+        CodeKind kind = kindOf(loc.method());
+        if (kind == CodeKind.BUILTIN || kind == CodeKind.LAMBDA) {
             return false;
         }
 
         if (loc.lineNumber() <= 0) {
-            userlog(loc.toString());
+            session.userlog(loc.toString());
             return true;
         }
 
@@ -317,28 +606,139 @@ public class JDI2JSON {
     // approach 2, using an id based on stack depth, does not work w/ frontend
     // approach 3, just give each frame at each execution point a unique id,
     // is what we do. but we also want to skip animating e.p.'s where nothing changed,
-    // and if only the frame ids changed, we should treat it as if nothing changed
-    private boolean reallyChanged(JsonObject old_ep, JsonObject new_ep) {
+    // and if only the frame ids changed, we should treat it as if nothing changed.
+    // so we compare fingerprints that leave out the frame ids, and only compare
+    // the e.p.'s themselves when the fingerprints agree.
+    static boolean reallyChanged(JsonObject old_ep, long old_fingerprint,
+            JsonObject new_ep, long new_fingerprint) {
         if (old_ep == null) return true;
-        return !stripFrameIDs(new_ep).equals(stripFrameIDs(old_ep));
+        if (old_fingerprint != new_fingerprint) return true;
+        return !sameIgnoringFrameIDs(old_ep, new_ep);
+    }
+
+    private static boolean isFrameID(String key) {
+        return key.equals("frame_id") || key.equals("unique_hash");
+    }
+
+    /**
+     * A structural hash of an execution point that leaves out the frame ids.
+     *
+     * Like JsonObject.equals, it doesn't depend on the order of keys.
+     */
+    static long fingerprint(JsonObject ep) {
+        long result = 0;
+        for (Map.Entry<String, JsonValue> me : ep.entrySet()) {
+            long value;
+            if (me.getKey().equals("stack_to_render")) {
+                value = fingerprintStack((JsonArray)me.getValue());
+            } else if (me.getKey().equals("threads")) {
+                value = 1;
+                for (JsonValue t : (JsonArray)me.getValue()) {
+                    JsonObject other = (JsonObject)t;
+                    value = value * 31 +
+                        mix(other.getString("name").hashCode() * 31L +
+                            fingerprintStack(other.getJsonArray("stack_to_render")));
+                }
+            } else {
+                value = fingerprint(me.getValue());
+            }
+            result += mix(me.getKey().hashCode() * 31L + value);
+        }
+        return result;
+    }
+
+    private static long fingerprintStack(JsonArray frames) {
+        long result = 1;
+        for (JsonValue frame : frames) {
+            long frameHash = 0;
+            for (Map.Entry<String, JsonValue> fe : ((JsonObject)frame).entrySet()) {
+                if ( ! isFrameID(fe.getKey())) {
+                    frameHash += mix(fe.getKey().hashCode() * 31L
+                                     + fingerprint(fe.getValue()));
+                }
+            }
+            result = result * 31 + frameHash;
+        }
+        return result;
     }
 
-    private JsonObject stripFrameIDs(JsonObject ep) {
-        JsonArrayBuilder result = Json.createArrayBuilder();
-        for (JsonValue frame : (JsonArray)(ep.get("stack_to_render"))) {
-            result.add(jsonModifiedObject
-                    (jsonModifiedObject( (JsonObject)frame,
-                                         "unique_hash",
-                                         jsonString("")),
-                     "frame_id",
-                     jsonInt(0)));
+    private static long fingerprint(JsonValue v) {
+        if (v instanceof JsonObject) {
+            long result = 0;
+            for (Map.Entry<String, JsonValue> me : ((JsonObject)v).entrySet()) {
+                result += mix(me.getKey().hashCode() * 31L
+                              + fingerprint(me.getValue()));
+            }
+            return result;
+        } else if (v instanceof JsonArray) {
+            long result = 1;
+            for (JsonValue w : (JsonArray)v) {
+                result = result * 31 + fingerprint(w);
+            }
+            return mix(result);
+        } else {
+            return v.hashCode();
         }
-        return jsonModifiedObject(ep, "stack_to_render", result.build());
+    }
+
+    // spreads the bits, so that sums of entry hashes rarely collide
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Compares two execution points in place, without frame ids.
+     */
+    private static boolean sameIgnoringFrameIDs(JsonObject a, JsonObject b) {
+        if ( ! a.keySet().equals(b.keySet())) return false;
+        for (Map.Entry<String, JsonValue> me : a.entrySet()) {
+            if (me.getKey().equals("stack_to_render")) {
+                if ( ! sameStacks((JsonArray)me.getValue(),
+                                  b.getJsonArray("stack_to_render"))) return false;
+            } else if (me.getKey().equals("threads")) {
+                JsonArray threadsA = (JsonArray)me.getValue();
+                JsonArray threadsB = b.getJsonArray("threads");
+                if (threadsA.size() != threadsB.size()) return false;
+                for (int i = 0; i < threadsA.size(); i++) {
+                    JsonObject threadA = threadsA.getJsonObject(i);
+                    JsonObject threadB = threadsB.getJsonObject(i);
+                    if ( ! threadA.getString("name").equals(threadB.getString("name")) ||
+                         ! sameStacks(threadA.getJsonArray("stack_to_render"),
+                                      threadB.getJsonArray("stack_to_render"))) {
+                        return false;
+                    }
+                }
+            } else if ( ! me.getValue().equals(b.get(me.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameStacks(JsonArray framesA, JsonArray framesB) {
+        if (framesA.size() != framesB.size()) return false;
+        for (int i = 0; i < framesA.size(); i++) {
+            JsonObject frameA = framesA.getJsonObject(i);
+            JsonObject frameB = framesB.getJsonObject(i);
+            if ( ! frameA.keySet().equals(frameB.keySet())) return false;
+            for (Map.Entry<String, JsonValue> fe : frameA.entrySet()) {
+                if ( ! isFrameID(fe.getKey()) &&
+                     ! fe.getValue().equals(frameB.get(fe.getKey()))) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     private JsonObjectBuilder convertFrame(StackFrame sf, boolean highlight, JsonValue returnValue) {
-        JsonObjectBuilder result = Json.createObjectBuilder();
-        JsonArrayBuilder result_ordered = Json.createArrayBuilder();
+        JsonObjectBuilder result = builders.createObjectBuilder();
+        JsonArrayBuilder result_ordered = builders.createArrayBuilder();
         if (sf.thisObject() != null) {
             result.add("this", convertValue(sf.thisObject()));
             result_ordered.add("this");
@@ -442,11 +842,11 @@ public class JDI2JSON {
             result_ordered.add("__return__");
         }
         String methodName = getFormattedMethodName(sf.location().method());
-        return Json.createObjectBuilder()
+        return builders.createObjectBuilder()
             .add("func_name", methodName + ":" + sf.location().lineNumber())
             .add("encoded_locals", result)
             .add("ordered_varnames", result_ordered)
-            .add("parent_frame_id_list", Json.createArrayBuilder())
+            .add("parent_frame_id_list", builders.createArrayBuilder())
             .add("is_highlighted", highlight)
             .add("is_zombie", false)
             .add("is_parent", false)
@@ -462,11 +862,11 @@ public class JDI2JSON {
         String functionName = String.format("\u22EE\n%s.%s",
             location.declaringType().name(), methodName);
 
-        return Json.createObjectBuilder()
+        return builders.createObjectBuilder()
             .add("func_name", functionName)
-            .add("encoded_locals", Json.createObjectBuilder())
-            .add("ordered_varnames", Json.createArrayBuilder())
-            .add("parent_frame_id_list", Json.createArrayBuilder())
+            .add("encoded_locals", builders.createObjectBuilder())
+            .add("ordered_varnames", builders.createArrayBuilder())
+            .add("parent_frame_id_list", builders.createArrayBuilder())
             .add("is_highlighted", false)
             .add("is_zombie", false)
             .add("is_parent", false)
@@ -477,7 +877,7 @@ public class JDI2JSON {
     JsonObjectBuilder convertHeap() {
         heap_done = new java.util.TreeSet<>();
 
-        JsonObjectBuilder result = Json.createObjectBuilder();
+        JsonObjectBuilder result = builders.createObjectBuilder();
         while ( ! heap.isEmpty()) {
             Map.Entry<Long, ObjectReference> first = heap.firstEntry();
             ObjectReference obj = first.getValue();
@@ -488,35 +888,133 @@ public class JDI2JSON {
             }
             heap_done.add(id);
             result.add("" + id, convertObject(obj, true));
+            session.metrics.heapObjects++;
         }
         return result;
     }
 
-    List<String> wrapperTypes =
-        new ArrayList<String>
+    static final Set<String> wrapperTypes = new HashSet<String>
         (Arrays.asList
          ("Byte Short Integer Long Float Double Character Boolean".split(" ")));
 
-    private JsonValue convertObject(ObjectReference obj, boolean fullVersion) {
-        if (showStringsAsValues && obj.referenceType().name().startsWith("java.lang.")
-                && wrapperTypes.contains(obj.referenceType().name().substring(10))) {
-            return convertValue(obj.getValue(obj.referenceType().fieldByName("value")));
+    /**
+     * What convertObject needs to know about a type. It only depends on
+     * the type, so it is worked out once per type rather than once per
+     * object and step.
+     */
+    private class TypeInfo {
+        // the field holding the value, for java.lang wrapper types
+        Field wrapperValue = null;
+        // what the frontend shows as the name of the type
+        String displayName;
+        boolean showGuts;
+        // the fields to show (unless !showGuts), with their labels
+        Map<Field, String> fieldNames = new LinkedHashMap<>();
+        // the fields an exception message may be in; null until needed
+        List<Field> detailMessageFields = null;
+
+        TypeInfo(ReferenceType rt) {
+            String fullName = rt.name();
+            if (fullName.startsWith("java.lang.")
+                    && wrapperTypes.contains(fullName.substring(10))) {
+                wrapperValue = rt.fieldByName("value");
+                displayName = fullName.substring(10);
+            } else {
+                displayName = displayName(rt);
+            }
+
+            showGuts = showGuts(rt);
+            // fields: -inherited -hidden +synthetic
+            // visibleFields: +inherited -hidden +synthetic
+            // allFields: +inherited +hidden +repeated_synthetic
+            for (Field f : showAllFields ? rt.allFields() : rt.visibleFields()) {
+                if ( ! f.isStatic() && (showAllFields || !f.isSynthetic())) {
+                    String name = (showAllFields
+                        ? f.declaringType().name() + "."
+                        : ""
+                    ) + f.name();
+                    fieldNames.put(f, name);
                 }
+            }
+        }
+
+        List<Field> getDetailMessageFields(ReferenceType rt) {
+            if (detailMessageFields == null) {
+                detailMessageFields = new ArrayList<>();
+                for (Field ff : rt.allFields()) {
+                    if (ff.name().equals("detailMessage")) {
+                        detailMessageFields.add(ff);
+                    }
+                }
+            }
+            return detailMessageFields;
+        }
+    }
+
+    private Map<ReferenceType, TypeInfo> typeInfos = new HashMap<>();
+
+    private TypeInfo typeInfo(ReferenceType rt) {
+        TypeInfo info = typeInfos.get(rt);
+        if (info == null) {
+            info = new TypeInfo(rt);
+            typeInfos.put(rt, info);
+        }
+        return info;
+    }
+
+    private static String displayName(ReferenceType rt) {
+        String fullName = rt.name();
+        if (fullName.indexOf("$") > 0) {
+            // inner, local, anonymous or lambda class
+            if (fullName.contains("$$Lambda")) {
+                fullName = "&lambda;" + fullName.substring(fullName.indexOf("$$Lambda")+9); // skip $$lambda$
+                try {
+                    String interf = ((ClassType)rt).interfaces().get(0).name();
+                    if (interf.startsWith("java.util.function."))
+                        interf = interf.substring(19);
+
+                    fullName += " ["+interf+"]";
+                } catch (Exception e) {}
+            // more cases here?
+            } else {
+                fullName=fullName.substring(1+fullName.indexOf('$'));
+                if (fullName.matches("[0-9]+")) {
+                    fullName = "anonymous class " + fullName;
+                } else if (fullName.substring(0, 1).matches("[0-9]+")) {
+                    fullName = "local class " + fullName.substring(1);
+                }
+            }
+        }
+        return fullName;
+    }
+
+    private long idOf(ObjectReference obj) {
+        return objectIds == null ? obj.uniqueID() : objectIds.idOf(obj);
+    }
+
+    JsonValue convertObject(ObjectReference obj, boolean fullVersion) {
+        if (showStringsAsValues && ! (obj instanceof ArrayReference)
+                && ! (obj instanceof StringReference)) {
+            TypeInfo info = typeInfo(obj.referenceType());
+            if (info.wrapperValue != null) {
+                return convertValue(obj.getValue(info.wrapperValue));
+            }
+        }
 
         // abbreviated versions are for references to objects
         if ( ! fullVersion) {
-            heap.put(obj.uniqueID(), obj);
-            return Json.createArrayBuilder()
+            heap.put(idOf(obj), obj);
+            return builders.createArrayBuilder()
                 .add("REF")
-                .add(obj.uniqueID())
+                .add(idOf(obj))
                 .build();
         // full versions are for describing the objects themselves,
         // in the heap
         } else if (obj instanceof ArrayReference) {
-            heap_done.add(obj.uniqueID());
+            heap_done.add(idOf(obj));
             return convertArray((ArrayReference)obj);
         } else if (obj instanceof StringReference) {
-            return Json.createArrayBuilder()
+            return builders.createArrayBuilder()
                 .add("HEAP_PRIMITIVE")
                 .add("String")
                 .add(jsonString(((StringReference)obj).value()))
@@ -525,100 +1023,175 @@ public class JDI2JSON {
         // do we need special cases for ClassObjectReference, ThreadReference,.... ?
         // stack and queue handling code by Will Gwozdz
         else {
-            JsonArrayBuilder result = Json.createArrayBuilder();
+            JsonArrayBuilder result = builders.createArrayBuilder();
             // now deal with Objects.
-            heap_done.add(obj.uniqueID());
+            heap_done.add(idOf(obj));
             result.add("INSTANCE");
-            if (obj.referenceType().name().startsWith("java.lang.")
-                    && wrapperTypes.contains(obj.referenceType().name().substring(10))) {
-                result.add(obj.referenceType().name().substring(10));
+            TypeInfo info = typeInfo(obj.referenceType());
+            result.add(info.displayName);
+            if (info.wrapperValue != null) {
                 result.add(jsonArray("___NO_LABEL!___",//jsonArray("NO-LABEL"), // don't show a label or label cell for wrapper instance field
-                            convertValue(obj.getValue(obj.referenceType().fieldByName("value")))));
-            } else {
-                String fullName = obj.referenceType().name();
-                if (fullName.indexOf("$") > 0) {
-                    // inner, local, anonymous or lambda class
-                    if (fullName.contains("$$Lambda")) {
-                        fullName = "&lambda;" + fullName.substring(fullName.indexOf("$$Lambda")+9); // skip $$lambda$
-                        try {
-                            String interf = ((ClassType)obj.referenceType()).interfaces().get(0).name();
-                            if (interf.startsWith("java.util.function."))
-                                interf = interf.substring(19);
-
-                            fullName += " ["+interf+"]";
-                        } catch (Exception e) {}
-                    // more cases here?
-                    } else {
-                        fullName=fullName.substring(1+fullName.indexOf('$'));
-                        if (fullName.matches("[0-9]+")) {
-                            fullName = "anonymous class " + fullName;
-                        } else if (fullName.substring(0, 1).matches("[0-9]+")) {
-                            fullName = "local class " + fullName.substring(1);
-                        }
-                    }
-                }
-                result.add(fullName);
-            }
-            if (showGuts(obj.referenceType())) {
-                // fields: -inherited -hidden +synthetic
-                // visibleFields: +inherited -hidden +synthetic
-                // allFields: +inherited +hidden +repeated_synthetic
-                for (Map.Entry<Field,Value> me : obj.getValues(showAllFields ?
-                         obj.referenceType().allFields() :
-                         obj.referenceType().visibleFields())
-                        .entrySet()) {
-                    if ( ! me.getKey().isStatic() && (showAllFields || !me.getKey().isSynthetic())) {
-                        String name = (showAllFields
-                            ? me.getKey().declaringType().name() + "."
-                            : ""
-                        ) + me.getKey().name();
-
-                        result.add(Json.createArrayBuilder()
-                            .add(name)
-                            .add(convertValue(me.getValue())));
-                    }
+                            convertValue(obj.getValue(info.wrapperValue))));
+            }
+            if (info.showGuts && ! info.fieldNames.isEmpty()) {
+                for (Map.Entry<Field,Value> me :
+                         obj.getValues(new ArrayList<>(info.fieldNames.keySet()))
+                         .entrySet()) {
+                    result.add(builders.createArrayBuilder()
+                        .add(info.fieldNames.get(me.getKey()))
+                        .add(convertValue(me.getValue())));
                 }
             }
             return result.build();
         }
     }
 
+    // how many elements of an array to fetch from the debuggee at once
+    private static final int ARRAY_CHUNK = 1024;
+
     /**
      * Convert the given array reference into a JSON array representation.
      */
-    private JsonArray convertArray(ArrayReference arr) {
-        JsonArrayBuilder result = Json.createArrayBuilder();
+    JsonArray convertArray(ArrayReference arr) {
+        JsonArrayBuilder result = builders.createArrayBuilder();
         result.add("LIST");
-        for (int i = 0; i < arr.length(); i++) {
-            // hack for markov
-            if ( ! isZeroIntegerValue(arr.getValue(i))) {
-                result.add(convertValue(arr.getValue(i)));
-                continue;
+        int length = arr.length();
+        if (session.maxArrayLength > 0 && length > session.maxArrayLength) {
+            addArrayWindows(result, arr, length);
+        } else {
+            addArrayElements(result, arr, 0, length);
+        }
+        return result.build();
+    }
+
+    /**
+     * Adds the elements from index "from" up to "to", eliding runs.
+     */
+    private void addArrayElements(JsonArrayBuilder result, ArrayReference arr,
+                                  int from, int to) {
+        // the run of equal values we are in the middle of
+        Value runValue = null;
+        int runLength = 0;
+        for (int start = from; start < to; start += ARRAY_CHUNK) {
+            for (Value v : arr.getValues(start, Math.min(ARRAY_CHUNK, to - start))) {
+                if (runLength > 0 && isRepeatOf(runValue, v)) {
+                    runLength++;
+                    continue;
+                }
+                addRun(result, runValue, runLength);
+                runValue = v;
+                runLength = 1;
             }
+        }
+        addRun(result, runValue, runLength);
+    }
 
-            // j is the next nonzero after i
-            int j = i + 1;
-            while (j < arr.length() && isZeroIntegerValue(arr.getValue(j))) {
-                j++;
+    /**
+     * Adds only parts of an array that is too long to show in full: the
+     * first and last ARRAY_WINDOW elements, and the elements around each
+     * index held by an integer local. Each part left out becomes
+     * ["ELIDE", count, start, length], where start is the index of the
+     * first element left out and length is the length of the array.
+     */
+    private void addArrayWindows(JsonArrayBuilder result, ArrayReference arr,
+                                 int length) {
+        int window = Math.max(1, session.arrayWindow);
+        List<int[]> ranges = new ArrayList<>();
+        ranges.add(new int[] {0, Math.min(window, length)});
+        ranges.add(new int[] {Math.max(0, length - window), length});
+        for (long i : getIndexCandidates()) {
+            if (i >= 0 && i < length) {
+                ranges.add(new int[] {(int)Math.max(0, i - window / 2),
+                                      (int)Math.min(length, i + window / 2 + 1)});
             }
-            if (j - i >= 4) {
-                result.add(convertValue(arr.getValue(i)));
-                result.add(Json.createArrayBuilder().add("ELIDE").add(j - i - 2));
-                result.add(convertValue(arr.getValue(j-1)));
-            } else {
-                for (int k = i; k < j; k++) {
-                    result.add(convertValue(arr.getValue(k)));
+        }
+        Collections.sort(ranges, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+
+        int shown = 0; // everything before this index is already added
+        for (int[] range : ranges) {
+            int from = Math.max(range[0], shown);
+            if (range[1] <= from) continue;
+            if (from > shown) {
+                result.add(builders.createArrayBuilder()
+                           .add("ELIDE").add(from - shown).add(shown).add(length));
+            }
+            addArrayElements(result, arr, from, range[1]);
+            shown = range[1];
+        }
+        if (shown < length) {
+            result.add(builders.createArrayBuilder()
+                       .add("ELIDE").add(length - shown).add(shown).add(length));
+        }
+    }
+
+    /**
+     * @return The values of the integer locals in the user frames of
+     * the current thread.
+     */
+    private Set<Long> getIndexCandidates() {
+        if (indexCandidates != null) {
+            return indexCandidates;
+        }
+        indexCandidates = new TreeSet<>();
+        try {
+            for (StackFrame sf : currentThread.frames()) {
+                if ( ! showFramesInLocation(sf.location())) continue;
+                try {
+                    for (Value v : sf.getValues(sf.visibleVariables()).values()) {
+                        if (v instanceof IntegerValue || v instanceof ShortValue ||
+                            v instanceof ByteValue || v instanceof LongValue) {
+                            indexCandidates.add(((PrimitiveValue)v).longValue());
+                        }
+                    }
+                } catch (AbsentInformationException | InternalException e) {
+                    // no names for the locals of this frame (see convertFrame)
                 }
             }
-            i = j - 1; // don't redo them all
+        } catch (IncompatibleThreadStateException ex) {
+            // thread was not suspended .. should not normally happen
+            throw new RuntimeException(ex);
         }
-        return result.build();
+        return indexCandidates;
+    }
+
+    /**
+     * Adds a run of n equal array elements. Runs of 4 or more are
+     * shortened to the first, ["ELIDE", n - 2], and the last.
+     */
+    private void addRun(JsonArrayBuilder result, Value v, int n) {
+        if (n == 0) return;
+        JsonValue converted = convertValue(v);
+        if (n >= 4) {
+            result.add(converted);
+            result.add(builders.createArrayBuilder().add("ELIDE").add(n - 2));
+            result.add(converted);
+        } else {
+            for (int i = 0; i < n; i++) {
+                result.add(converted);
+            }
+        }
+    }
+
+    /**
+     * Only primitives and nulls are elided; objects always get their
+     * own entry, since they are rendered as references into the heap.
+     */
+    private static boolean isRepeatOf(Value v, Value w) {
+        if (v == null || w == null) {
+            return v == w;
+        }
+        return ! (v instanceof ObjectReference) && v.equals(w);
     }
 
     private JsonArray convertVoid = jsonArray("VOID");
 
     private JsonArray jsonArray(Object... args) {
-        JsonArrayBuilder result = Json.createArrayBuilder();
+        JsonArrayBuilder result = builders.createArrayBuilder();
         for (Object o : args) {
             if (o instanceof JsonValue) {
                 result.add((JsonValue)o);
@@ -632,7 +1205,7 @@ public class JDI2JSON {
         return result.build();
     }
 
-    private JsonValue convertValue(Value v) {
+    JsonValue convertValue(Value v) {
         if (v instanceof BooleanValue) {
             if (((BooleanValue)v).value() == true) {
                 return JsonValue.TRUE;
@@ -674,35 +1247,30 @@ public class JDI2JSON {
             return jsonString(((StringReference)v).value());
         } else {
             ObjectReference obj = (ObjectReference)v;
-            heap.put(obj.uniqueID(), obj);
+            heap.put(idOf(obj), obj);
             return convertObject(obj, false);
         }
     }
 
-    static JsonObject compileErrorOutput(String errmsg) {
-        return compileErrorOutput(errmsg, "", 0, 0);
+    static JsonObject errorEvent(String errmsg, String fileName,
+            long row, long col) {
+        return builders.createObjectBuilder()
+            .add("line", ""+row)
+            .add("file", fileName)
+            .add("offset", ""+col)
+            .add("event", "uncaught_exception")
+            .add("exception_msg", errmsg)
+            .build();
     }
 
-    static JsonObject compileErrorOutput(String errmsg, String fileName,
-            long row, long col) {
-        return output(Json.createArrayBuilder().add(
-                    Json.createObjectBuilder()
-                    .add("line", ""+row)
-                    .add("file", fileName)
-                    .add("offset", ""+col)
-                    .add("event", "uncaught_exception")
-                    .add("exception_msg", errmsg)
-                    ).build());
-    }
-
-    static JsonObject output(JsonArray trace) {
-        JsonObjectBuilder result = Json.createObjectBuilder();
-        result.add("stdin", InMemory.stdin)
-            .add("trace", trace);
-        if (userlogged != null) {
-            result.add("userlog", userlogged.toString());
-        }
-        return result.build();
+    /**
+     * @return The step that ends a trace cut short by one of its limits.
+     */
+    static JsonObject limitEvent(String message) {
+        return builders.createObjectBuilder()
+            .add("exception_msg", message)
+            .add("event", "instruction_limit_reached")
+            .build();
     }
 
     String exceptionMessage(ExceptionEvent event) {
@@ -723,13 +1291,13 @@ public class JDI2JSON {
 
             // so instead we just look for the longest detailMessage
             String detail = "";
-            for (Field ff: excType.allFields()) {
-                if (ff.name().equals("detailMessage")) {
-                    StringReference sr = (StringReference) exc.getValue(ff);
-                    String thisMsg = sr == null ? null : sr.value();
-                    if (thisMsg != null && thisMsg.length() > detail.length())
-                        detail = thisMsg;
-                }
+            List<Field> detailFields =
+                typeInfo(excType).getDetailMessageFields(excType);
+            for (Value v : exc.getValues(detailFields).values()) {
+                StringReference sr = (StringReference) v;
+                String thisMsg = sr == null ? null : sr.value();
+                if (thisMsg != null && thisMsg.length() > detail.length())
+                    detail = thisMsg;
             }
 
             if (detail.equals("")) {
@@ -751,20 +1319,153 @@ public class JDI2JSON {
 
     /* JSON utility methods */
 
+    /*
+     * Every primitive of every step goes through these, so they make their
+     * values directly rather than building (and throwing away) a one-element
+     * array for each. They are equal to, and hash like, the provider's
+     * values, which reallyChanged and fingerprint rely on.
+     */
+
+    // jsonInt of the small ints, which are most of them
+    private static final JsonNumber[] smallInts = new JsonNumber[1024 + 128];
+    static {
+        for (int i = 0; i < smallInts.length; i++) {
+            smallInts[i] = new Num(BigDecimal.valueOf(i - 128));
+        }
+    }
+
     static JsonValue jsonInt(long l) {
-        return Json.createArrayBuilder().add(l).build().getJsonNumber(0);
+        if (l >= -128 && l < smallInts.length - 128) {
+            return smallInts[(int)l + 128];
+        }
+        return new Num(BigDecimal.valueOf(l));
     }
 
     static JsonValue jsonReal(double d) {
-        return Json.createArrayBuilder().add(d).build().getJsonNumber(0);
+        // like JsonArrayBuilder.add(double), throws on NaN and infinities
+        return new Num(BigDecimal.valueOf(d));
     }
 
     static JsonValue jsonString(String S) {
-        return Json.createArrayBuilder().add(S).build().getJsonString(0);
+        return new Str(S);
+    }
+
+    private static final class Num implements JsonNumber {
+        private final BigDecimal value;
+
+        Num(BigDecimal value) {
+            this.value = value;
+        }
+
+        @Override
+        public ValueType getValueType() {
+            return ValueType.NUMBER;
+        }
+
+        @Override
+        public boolean isIntegral() {
+            return value.scale() == 0;
+        }
+
+        @Override
+        public int intValue() {
+            return value.intValue();
+        }
+
+        @Override
+        public int intValueExact() {
+            return value.intValueExact();
+        }
+
+        @Override
+        public long longValue() {
+            return value.longValue();
+        }
+
+        @Override
+        public long longValueExact() {
+            return value.longValueExact();
+        }
+
+        @Override
+        public BigInteger bigIntegerValue() {
+            return value.toBigInteger();
+        }
+
+        @Override
+        public BigInteger bigIntegerValueExact() {
+            return value.toBigIntegerExact();
+        }
+
+        @Override
+        public double doubleValue() {
+            return value.doubleValue();
+        }
+
+        @Override
+        public BigDecimal bigDecimalValue() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof JsonNumber
+                && value.equals(((JsonNumber)obj).bigDecimalValue());
+        }
+
+        @Override
+        public String toString() {
+            return value.toString();
+        }
+    }
+
+    private static final class Str implements JsonString {
+        private final String value;
+
+        Str(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public ValueType getValueType() {
+            return ValueType.STRING;
+        }
+
+        @Override
+        public String getString() {
+            return value;
+        }
+
+        @Override
+        public CharSequence getChars() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof JsonString
+                && value.equals(((JsonString)obj).getString());
+        }
+
+        @Override
+        public String toString() {
+            // quoted and escaped, which is rarely needed
+            return builders.createArrayBuilder().add(value).build().get(0).toString();
+        }
     }
 
     static JsonObject jsonModifiedObject(JsonObject obj, String S, JsonValue v) {
-        JsonObjectBuilder result = Json.createObjectBuilder();
+        JsonObjectBuilder result = builders.createObjectBuilder();
         result.add(S, v);
         for (Map.Entry<String, JsonValue> me : obj.entrySet()) {
             if (!S.equals(me.getKey()))
@@ -775,7 +1476,7 @@ public class JDI2JSON {
 
     // add at specified position, or end if -1
     static JsonArray jsonModifiedArray(JsonArray arr, int tgt, JsonValue v) {
-        JsonArrayBuilder result = Json.createArrayBuilder();
+        JsonArrayBuilder result = builders.createArrayBuilder();
         int i = 0;
         for (JsonValue w : arr) {
             if (i == tgt) {
@@ -791,13 +1492,6 @@ public class JDI2JSON {
         return result.build();
     }
 
-    /**
-     * Determine if the given JDI value is a zerod integer.
-     */
-    boolean isZeroIntegerValue(Value v) {
-        return v instanceof IntegerValue && ((IntegerValue)v).intValue() == 0;
-    }
-
     /**
      * Neatly formats the name for the given method.
      *
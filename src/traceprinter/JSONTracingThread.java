@@ -33,7 +33,7 @@ public class JSONTracingThread extends Thread {
     private final VirtualMachine vm;   // Running VM
     private String[] no_breakpoint_requests = {
         "java.*", "javax.*", "sun.*", "com.sun.*",
-        "jdk.internal.org.objectweb.asm.*" // for creating lambda classes
+        "jdk.*" // jdk.internal.org.objectweb.asm creates lambda classes
     };
 
     private boolean connected = true;  // Connected to VM
@@ -43,86 +43,187 @@ public class JSONTracingThread extends Thread {
 
     private JDI2JSON jdi2json;
 
-    static int MAX_STEPS = 256;
-
-    static double MAX_WALLTIME_SECONDS = 5;
-
     private int steps = 0;
 
-    static int MAX_STACK_SIZE = 16;
+    // also set by the job's own thread; see stopAtDeadline
+    private volatile boolean timeLimitReached = false;
+
+    // why the trace ended, for the trailer of a streamed trace
+    private volatile String termination = "exit";
 
     private InMemory im;
 
+    private TraceSession session;
+
     private VMCommander vmc;
 
-    private JsonArrayBuilder output = Json.createArrayBuilder();
+    // set once the debuggee has loaded NoopMain
+    private ReferenceType noopMainType = null;
+
+    private TraceOutput output;
+
+    // non-null when steps are written as deltas ("deltaTrace" option)
+    private TraceDelta delta = null;
+
+    // false with the "breakpoints" tracing strategy, which only uses the
+    // line breakpoints and method exits
+    private boolean useStepRequests = true;
+    private Map<ThreadReference, StepRequest> stepRequests = new HashMap<>();
+    private StepRequest armedStep = null;
+
+    // with the "multiThreaded" option, events only stop their own thread,
+    // and each thread steps on its own
+    private boolean multiThreaded = false;
+    // the thread running the user's main method
+    private ThreadReference mainThread = null;
+
+    // the trace window; see TracePoint. Until traceStart is reached, the
+    // requests in windowRequests are disabled (except the breakpoints at
+    // traceStart itself, or all line breakpoints when lines have to be
+    // counted), and once traceStop is reached they are disabled again
+    private TracePoint traceStart, traceStop;
+    private boolean tracing;
+    private boolean traceStopped = false;
+    private List<EventRequest> windowRequests = new ArrayList<>();
+    // line breakpoints hit in the user's code so far
+    private int linesRun = 0;
+
+    // how often to look at the output and the time limit when the
+    // debuggee doesn't stop: an instrumented debuggee rarely does, and
+    // with breakpoints, a loop on a single line never does
+    private static final long POLL_MILLIS = 100;
+
+    // with the "instrumented" tracing strategy, the recorder in the
+    // debuggee; null otherwise
+    private RecorderLink recorder = null;
+    // the steps, kept until the instrumented run is known to work
+    private List<JsonObject> heldSteps = null;
+    // set once the instrumented run is given up
+    private volatile boolean fellBack = false;
+    // guards heldSteps and the end of the output, which stopAtDeadline
+    // may get to from another thread
+    private final Object outputLock = new Object();
+    // when the event loop started, for session.metrics; 0 once counted
+    private long traceBegan = 0;
+    // Json.createReader looks up the provider every time
+    private static final JsonReaderFactory recordReaders =
+        Json.createReaderFactory(null);
 
     JSONTracingThread(InMemory im) {
         super("event-handler");
         this.vm = im.vm;
         this.im = im;
+        this.session = im.session;
+        this.output = session.output;
         mgr = vm.eventRequestManager();
         jdi2json = new JDI2JSON(vm,
                                 vm.process().getInputStream(),
                                 vm.process().getErrorStream(),
-                                im.optionsObject);
+                                im.optionsObject,
+                                session);
+        if (im.optionsObject.getBoolean("deltaTrace", false)) {
+            delta = new TraceDelta();
+        }
+        String strategy = im.optionsObject.getString("tracingStrategy", "step");
+        if (strategy.equals("breakpoints")) {
+            useStepRequests = false;
+        } else if (strategy.equals("instrumented")) {
+            // without im.instrumenter, the program couldn't be rewritten
+            useStepRequests = false;
+            if (im.instrumenter != null) {
+                recorder = new RecorderLink(vm, im.instrumenter, session,
+                                            jdi2json.showStringsAsValues);
+                jdi2json.objectIds = recorder;
+                heldSteps = new ArrayList<>();
+            }
+        } else if ( ! strategy.equals("step")) {
+            session.userlog("Unknown tracingStrategy " + strategy + "; using step");
+        }
+        multiThreaded = im.optionsObject.getBoolean("multiThreaded", false);
+        traceStart = session.traceStart;
+        traceStop = session.traceStop;
+        tracing = traceStart == null;
         setEventRequests();
     }
 
+    /**
+     * Sets up the requests that don't depend on the user's classes.
+     *
+     * Method exit and caught exception requests are made per class, once
+     * each class is prepared; see classPrepareEvent. Method entries are
+     * never requested, since every first line already has a breakpoint.
+     */
     void setEventRequests() {
-        ExceptionRequest excReq = mgr.createExceptionRequest(null, true, true);
+        // uncaught exceptions end the trace wherever they are thrown
+        // (usually in VMCommandee, which passes on those from main), so
+        // this is the one place where everything is stopped
+        ExceptionRequest excReq = mgr.createExceptionRequest(null, false, true);
         excReq.setSuspendPolicy(EventRequest.SUSPEND_ALL);
         for (String clob : no_breakpoint_requests)
             excReq.addClassExclusionFilter(clob);
         excReq.enable();
 
-        MethodEntryRequest menr = mgr.createMethodEntryRequest();
-        for (String clob : no_breakpoint_requests)
-            menr.addClassExclusionFilter(clob);
-        menr.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
-        menr.enable();
-
-        MethodExitRequest mexr = mgr.createMethodExitRequest();
-        for (String clob : no_breakpoint_requests)
-            mexr.addClassExclusionFilter(clob);
-        mexr.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
-        mexr.enable();
-
         ThreadDeathRequest tdr = mgr.createThreadDeathRequest();
-        tdr.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+        // nothing to look at, so nothing needs to wait for us
+        tdr.setSuspendPolicy(EventRequest.SUSPEND_NONE);
         tdr.enable();
 
         ClassPrepareRequest cpr = mgr.createClassPrepareRequest();
         for (String clob : no_breakpoint_requests)
             cpr.addClassExclusionFilter(clob);
-        cpr.setSuspendPolicy(EventRequest.SUSPEND_ALL);
+        // the thread loading the class is the one that will run it first,
+        // so stopping it is enough to set the breakpoints in time
+        cpr.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
         cpr.enable();
     }
 
     @Override
     public void run() {
-        StepRequest request = null;
+        traceBegan = TraceMetrics.begin();
         final EventQueue queue = vm.eventQueue();
         while (connected) {
             try {
-                final EventSet eventSet = queue.remove();
+                final EventSet eventSet = queue.remove(POLL_MILLIS);
+                if (eventSet == null) {
+                    poll();
+                    continue;
+                }
+                countLinesRun(eventSet);
+                Location lastLine = null;
                 for (Event event : new EventSetIterable(eventSet)) {
+                    session.metrics.events++;
+                    // a step and a breakpoint at the same place arrive
+                    // together; one of them is enough
+                    if (event instanceof StepEvent || event instanceof BreakpointEvent) {
+                        Location loc = ((LocatableEvent)event).location();
+                        if (loc.equals(lastLine)) {
+                            session.metrics.duplicateEvents++;
+                            continue;
+                        }
+                        lastLine = loc;
+                    }
+
                     tryHandlingEvent(event);
-                    finishRequest(request);
+                    if (useStepRequests) {
+                        if ( ! multiThreaded) {
+                            disarmStep();
+                        } else if (event instanceof LocatableEvent) {
+                            // the other threads keep stepping
+                            disarmStep(((LocatableEvent)event).thread());
+                        }
+                    }
 
                     boolean isReportableEvent =
                         event instanceof LocatableEvent &&
                         jdi2json.reportEventsAtLocation(((LocatableEvent)event).location());
 
-                    boolean shouldCreateStepRequest = isReportableEvent ||
-                        (event.toString().contains("NoopMain"));
+                    // outside of the trace window, nothing is stepped
+                    boolean shouldStep = (tracing && isReportableEvent) ||
+                        (event instanceof LocatableEvent &&
+                         isInNoopMain(((LocatableEvent)event).location()));
 
-                    if (shouldCreateStepRequest) {
-                        request = mgr.createStepRequest(((LocatableEvent)event).thread(),
-                            StepRequest.STEP_MIN,
-                            StepRequest.STEP_INTO);
-                        request.addCountFilter(1);  // next step only
-                        request.enable();
+                    if (useStepRequests && shouldStep) {
+                        armStep(((LocatableEvent)event).thread());
                     }
                 }
                 eventSet.resume();
@@ -134,19 +235,32 @@ public class JSONTracingThread extends Thread {
                 break;
             }
         }
-        String outputString = createJsonOutputString();
-        try {
-            PrintStream out = new PrintStream(System.out, true, "UTF-8");
-            out.print(outputString);
-        } catch (UnsupportedEncodingException e) {
-            System.out.print(outputString);
-        }
+        endTracePhase();
+        finishOutput();
+    }
+
+    /**
+     * @return True if the instrumented run was given up, and nothing was
+     * written; InMemory then traces the program again.
+     */
+    boolean fellBack() {
+        return fellBack;
     }
 
-    private String createJsonOutputString() {
+    private void finishOutput() {
+        if (fellBack) {
+            return;
+        }
+        flushHeldSteps();
+
         if (vmc == null) {
-            return JDI2JSON.compileErrorOutput("Internal error: " +
-                " there was an error starting the debuggee VM.").toString();
+            if (timeLimitReached) {
+                output.finish(termination);
+                return;
+            }
+            output.finishWithError("internal_error", "Internal error: " +
+                " there was an error starting the debuggee VM.");
+            return;
         }
 
         try {
@@ -155,17 +269,23 @@ public class JSONTracingThread extends Thread {
             throw new RuntimeException(e);
         }
 
-        if ( ! vmc.wasSuccessful()) {
-            return JDI2JSON.compileErrorOutput(vmc.errorMessage).toString();
+        // killing the debuggee also fails the call to main
+        if ( ! vmc.wasSuccessful() && ! timeLimitReached) {
+            output.finishWithError("run_error", vmc.errorMessage);
+            return;
         }
-        return JDI2JSON.output(output.build()).toString();
+        output.finish(termination);
     }
 
     private void tryHandlingEvent(Event event) {
-        boolean hasExceededTimeLimit = System.currentTimeMillis() >
-            MAX_WALLTIME_SECONDS * 1000 + InMemory.startTime;
-        if (hasExceededTimeLimit) {
-            exitDueToTimeLimit();
+        if (timeLimitReached || fellBack) {
+            // The debuggee is being killed; wait for the disconnect.
+            return;
+        }
+        if (session.hasExceededTimeLimit()) {
+            takeRecords(event);
+            stopAtDeadline();
+            return;
         }
 
         if (event instanceof ClassPrepareEvent) {
@@ -179,45 +299,115 @@ public class JSONTracingThread extends Thread {
         }
     }
 
-    private void finishRequest(StepRequest request) {
-        if (request != null) {
-            if (request.isEnabled()) {
-                request.disable();
+    /**
+     * Asks for a step event at the next location the thread gets to.
+     *
+     * Each thread has one step request, which is only created once; it
+     * is enabled again for every step, since the count filter makes it
+     * fire only once per enable(). This saves the debugger making a new
+     * request object each time, not JDWP traffic: enable() and disable()
+     * send the same EventRequest.Set and Clear commands that creating
+     * and deleting a request would.
+     */
+    private void armStep(ThreadReference thread) {
+        StepRequest request = stepRequests.get(thread);
+        if (request == null) {
+            request = mgr.createStepRequest(thread,
+                StepRequest.STEP_MIN,
+                StepRequest.STEP_INTO);
+            request.addCountFilter(1);  // next step only
+            if (multiThreaded) {
+                request.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
             }
+            stepRequests.put(thread, request);
+        }
+        request.enable();
+        armedStep = request;
+        session.metrics.stepRequests++;
+    }
 
-            mgr.deleteEventRequest(request);
-            request = null;
+    private void disarmStep() {
+        if (armedStep != null) {
+            armedStep.disable();
+            armedStep = null;
         }
     }
 
-    private void exitDueToTimeLimit() {
-        output.add(Json.createObjectBuilder()
-                   .add("exception_msg", "<exceeded max visualizer time limit>")
-                   .add("event", "instruction_limit_reached"));
+    private void disarmStep(ThreadReference thread) {
+        StepRequest request = stepRequests.get(thread);
+        if (request != null && request.isEnabled()) {
+            request.disable();
+        }
+    }
 
-        try {
-            PrintStream out = new PrintStream(System.out, true, "UTF-8");
-            String outputString = JDI2JSON.output(output.build()).toString();
-            out.print(outputString);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        } finally {
-            System.exit(0);
-            vm.exit(0); // might take a long time
+    /**
+     * Ends the trace once the tracing budget is used up, with the steps
+     * so far. Called by this thread when it notices, or by the job's own
+     * thread (see InMemory.startDebuggerVM) when this one is stuck; either
+     * way the trace is finished right away.
+     *
+     * vm.exit(0) might take a long time, and we can't System.exit since
+     * other jobs may share this debugger, so the debuggee process is killed
+     * outright, without waiting for it to die. The resulting
+     * VMDisconnectEvent ends the event loop, which has nothing left to
+     * write by then.
+     */
+    void stopAtDeadline() {
+        synchronized (outputLock) {
+            if (timeLimitReached) return;
+            timeLimitReached = true;
+            termination = "time_limit";
+            endTracePhase();
+            flushHeldSteps();
+            output.addStep(JDI2JSON.limitEvent("<exceeded max visualizer time limit>"));
+            output.finish(termination);
+        }
+        vm.process().destroyForcibly();
+    }
+
+    private void endTracePhase() {
+        synchronized (outputLock) {
+            if (traceBegan != 0) {
+                session.metrics.end(TraceMetrics.Phase.TRACE, traceBegan);
+                traceBegan = 0;
+            }
+        }
+    }
+
+    private void flushHeldSteps() {
+        synchronized (outputLock) {
+            if (heldSteps != null) {
+                for (JsonObject step : heldSteps) {
+                    output.addStep(step);
+                }
+                heldSteps = null;
+            }
+        }
+    }
+
+    /**
+     * Keeps the output moving and checks the time limit while the
+     * debuggee runs without stopping.
+     */
+    private void poll() {
+        jdi2json.readOutputAhead();
+        if ( ! timeLimitReached && ! fellBack && session.hasExceededTimeLimit()) {
+            vm.suspend();
+            takeRecords(null);
+            stopAtDeadline();
         }
     }
 
     /**
      * Handle the given event during VM runtime.
      *
-     * The VM should be running on a single thread, or else we
-     * may get garbled output.
+     * Without the "multiThreaded" option, every event stops the whole VM,
+     * so the steps of different threads are simply interleaved.
      */
     private void handleLocatableEvent(LocatableEvent event) {
         tryInitVMCommander(event);
 
-        // We ignore these, since they are duplicated by StepEvents
-        if (event instanceof MethodEntryEvent) {
+        if (recorder != null && handleRecorderEvent(event)) {
             return;
         }
 
@@ -225,14 +415,81 @@ public class JSONTracingThread extends Thread {
 
         boolean isExceptionEvent = event instanceof ExceptionEvent &&
             ((ExceptionEvent)event).catchLocation() == null;
-        boolean isReportableEvent = steps < MAX_STEPS &&
+
+        // uncaught exceptions end the trace even outside of the window
+        if ( ! tracing && ! isExceptionEvent) {
+            if (traceStopped || ! reached(traceStart, event)) return;
+            startTracing();
+        }
+
+        boolean isReportableEvent = steps < session.maxSteps &&
             jdi2json.reportEventsAtLocation(loc);
 
         if (isReportableEvent) {
             addLocatableEventInfoToOutput(event);
+            if (tracing && traceStop != null && reached(traceStop, event)) {
+                stopTracing();
+            }
         } else if (isExceptionEvent) {
             addLocatableEventInfoToOutput(event);
-            vm.exit(0);
+            // other threads just die, like they would without us
+            if ( ! multiThreaded || event.thread().equals(mainThread)) {
+                termination = "uncaught_exception";
+                vm.exit(0);
+            }
+        }
+    }
+
+    private void countLinesRun(EventSet eventSet) {
+        for (Event event : new EventSetIterable(eventSet)) {
+            if (event instanceof BreakpointEvent &&
+                ! isInNoopMain(((BreakpointEvent)event).location())) {
+                linesRun++;
+            }
+        }
+    }
+
+    private boolean reached(TracePoint point, LocatableEvent event) {
+        if (point.isLineCount()) {
+            return linesRun >= point.linesRun;
+        }
+        return point.matches(event.location(), jdi2json);
+    }
+
+    /**
+     * Enables the requests kept by enableInWindow.
+     */
+    private void startTracing() {
+        tracing = true;
+        for (EventRequest request : windowRequests) {
+            request.enable();
+        }
+    }
+
+    /**
+     * Lets the rest of the run go at full speed. Only the uncaught
+     * exception request is left, so that a crash still ends the trace.
+     */
+    private void stopTracing() {
+        tracing = false;
+        traceStopped = true;
+        for (EventRequest request : windowRequests) {
+            request.disable();
+        }
+        for (StepRequest request : stepRequests.values()) {
+            request.disable();
+        }
+        armedStep = null;
+    }
+
+    /**
+     * Enables the request if we are inside the trace window, and keeps
+     * it to be enabled or disabled when the window starts or stops.
+     */
+    private void enableInWindow(EventRequest request) {
+        windowRequests.add(request);
+        if (tracing) {
+            request.enable();
         }
     }
 
@@ -252,9 +509,116 @@ public class JSONTracingThread extends Thread {
             }
         }
 
-        for (JsonObject e : jdi2json.convertExecutionPoint(event, loc, thread)) {
+        if (recorder != null && recorder.isReady()) {
+            // the recorder's steps come first, and this step shows the
+            // value it would have shown as the next last_return_value
+            addRecords(recorder.takeBuffered());
+            if ( ! termination.equals("exit")) return;
+            jdi2json.setLastReturnValue(thread, recorder.takeReturned());
+        }
+
+        List<JsonObject> points;
+        if (multiThreaded) {
+            // the other threads keep running until the snapshot, which
+            // needs their stacks to hold still
+            vm.suspend();
+            try {
+                points = jdi2json.convertExecutionPoint(event, loc, thread);
+            } finally {
+                vm.resume();
+            }
+        } else {
+            points = jdi2json.convertExecutionPoint(event, loc, thread);
+        }
+        for (JsonObject e : points) {
             addExecutionPointToOutput(e);
         }
+        if (recorder != null && recorder.isReady() && termination.equals("exit")) {
+            recorder.afterOwnStep(steps);
+        }
+    }
+
+    /**
+     * Handles the breakpoints in the recorder; see RecorderLink.
+     *
+     * @return False if the event is anywhere else.
+     */
+    private boolean handleRecorderEvent(LocatableEvent event) {
+        String method = recorder.recorderMethod(event);
+        if (method == null) {
+            return false;
+        }
+        if (method.equals("ready")) {
+            if ( ! recorder.handOver(steps)) {
+                fallBack("too many classes");
+            }
+        } else if (method.equals("drained")) {
+            addRecords(recorder.drainedText());
+        } else if (method.equals("failed")) {
+            fallBack(recorder.failure());
+        }
+        return true;
+    }
+
+    /**
+     * Adds the steps of the records, until the trace ends.
+     */
+    private void addRecords(String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        // one record per line, with no newlines inside
+        String records = "[" + text.trim().replace('\n', ',') + "]";
+        for (JsonValue record :
+                 recordReaders.createReader(new StringReader(records)).readArray()) {
+            if ( ! termination.equals("exit")) {
+                return;
+            }
+            for (JsonObject e : jdi2json.convertRecordedPoint((JsonObject)record)) {
+                addExecutionPointToOutput(e);
+            }
+        }
+        if (termination.equals("exit")) {
+            recorder.setSteps(steps);
+        }
+    }
+
+    /**
+     * Adds the steps the recorder has, when the trace is cut short.
+     */
+    private void takeRecords(Event event) {
+        if (recorder == null || ! recorder.isReady()) {
+            return;
+        }
+        if (event instanceof LocatableEvent &&
+            "drained".equals(recorder.recorderMethod((LocatableEvent)event))) {
+            addRecords(recorder.drainedText());
+        }
+        addRecords(recorder.takeBuffered());
+    }
+
+    /**
+     * Gives up on the instrumented run; InMemory then traces the program
+     * again with breakpoints.
+     */
+    private void fallBack(String reason) {
+        session.userlog("Can't trace this program instrumented (" + reason +
+                        "); using breakpoints");
+        synchronized (outputLock) {
+            fellBack = true;
+            heldSteps = null;
+        }
+        vm.exit(0);
+    }
+
+    private void addStep(JsonObject step) {
+        synchronized (outputLock) {
+            if (heldSteps != null) {
+                heldSteps.add(step);
+            } else {
+                output.addStep(step);
+            }
+        }
     }
 
     /**
@@ -263,19 +627,17 @@ public class JSONTracingThread extends Thread {
      * @see JDI2JSON.convertExecutionPoint for JSON format
      */
     private void addExecutionPointToOutput(JsonObject execPoint) {
-        output.add(execPoint);
+        addStep(delta == null ? execPoint : delta.encode(execPoint));
         steps++;
         int stackSize = ((JsonArray)execPoint.get("stack_to_render")).size();
 
-        if (stackSize >= MAX_STACK_SIZE) {
-            output.add(Json.createObjectBuilder()
-                .add("exception_msg", "<exceeded max visualizer stack size>")
-                .add("event", "instruction_limit_reached"));
+        if (stackSize >= session.maxStackSize) {
+            addStep(JDI2JSON.limitEvent("<exceeded max visualizer stack size>"));
+            termination = "stack_limit";
             vm.exit(0);
-        } else if (steps == MAX_STEPS) {
-            output.add(Json.createObjectBuilder()
-                .add("exception_msg", "<exceeded max visualizer step limit>")
-                .add("event", "instruction_limit_reached"));
+        } else if (steps == session.maxSteps) {
+            addStep(JDI2JSON.limitEvent("<exceeded max visualizer step limit>"));
+            termination = "step_limit";
             vm.exit(0);
         }
     }
@@ -289,17 +651,21 @@ public class JSONTracingThread extends Thread {
         // The vmc already exists - we don't need to init.
         if (vmc != null) return;
 
-        try {
-            if (event.location().sourceName().equals("NoopMain.java")) {
-                steps++;
-                vmc = new VMCommander(im, event.thread());
-                vmc.start();
-            }
-        } catch (AbsentInformationException e) {
-            throw new RuntimeException(e);
+        if (isInNoopMain(event.location())) {
+            steps++;
+            mainThread = event.thread();
+            vmc = new VMCommander(im, mainThread);
+            // hold the debuggee for vmc before this event set is resumed,
+            // or NoopMain may run to the end first
+            vm.suspend();
+            vmc.start();
         }
     }
 
+    private boolean isInNoopMain(Location loc) {
+        return noopMainType != null && noopMainType.equals(loc.declaringType());
+    }
+
     /***
      * A VMDisconnectedException has happened while dealing with
      * another event. We need to flush the event queue, dealing only
@@ -323,6 +689,9 @@ public class JSONTracingThread extends Thread {
                 eventSet.resume(); // Resume the VM
             } catch (InterruptedException exc) {
                 // ignore
+            } catch (VMDisconnectedException exc) {
+                // a killed debuggee's queue may close without the event
+                connected = false;
             }
         }
     }
@@ -331,26 +700,93 @@ public class JSONTracingThread extends Thread {
         //System.out.println("CPE!");
         ReferenceType rt = event.referenceType();
 
-        if (!rt.name().equals("traceprinter.shoelace.NoopMain")) {
+        if (rt.name().equals(VMPool.MAIN_CLASS)) {
+            noopMainType = rt;
+        } else {
             if (rt.name().equals("StdIn"))
                 jdi2json.stdinRT = rt;
 
-            if (jdi2json.in_builtin_package(rt.name()))
+            if (recorder != null && RecorderLink.isRecorder(rt)) {
+                recorder.recorderPrepared(rt, mgr);
+                return;
+            }
+
+            if (jdi2json.kindOf(rt) == JDI2JSON.CodeKind.BUILTIN)
                 return;
         }
 
         jdi2json.addPotentiallyStaticReference(rt);
 
+        if (traceStopped) {
+            // nothing is traced any more
+            return;
+        }
+
+        if (recorder != null && ! rt.equals(noopMainType)) {
+            // the rewritten classes tell the recorder everything but
+            // their exceptions
+            if ( ! im.instrumenter.isInstrumented(rt.name())) {
+                // classes the user didn't submit (jdk.internal.*, ...)
+                // have no user code
+                if (im.bytecode.containsKey(rt.name()))
+                    fallBack(rt.name() + " wasn't rewritten");
+            } else if ( ! recorder.addPrepared(rt)) {
+                fallBack("too many classes");
+            } else {
+                ExceptionRequest excReq = mgr.createExceptionRequest(null, true, false);
+                excReq.addClassFilter(rt.name());
+                excReq.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+                excReq.enable();
+            }
+            return;
+        }
+
+        // only ask for the method exits and caught exceptions of the
+        // classes we trace, so that library code doesn't stop the debuggee.
+        // filter by name: a ReferenceType filter would also match the
+        // subclasses, which get requests of their own
+        ExceptionRequest excReq = mgr.createExceptionRequest(null, true, false);
+        excReq.addClassFilter(rt.name());
+        excReq.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+
+        MethodExitRequest mexr = mgr.createMethodExitRequest();
+        mexr.addClassFilter(rt.name());
+        mexr.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+
+        if (rt.equals(noopMainType)) {
+            excReq.enable();
+            // while any method exit is requested, the debuggee only
+            // interprets, which would cost the recorder most of its speed
+            if (recorder == null) {
+                mexr.enable();
+            }
+        } else {
+            enableInWindow(excReq);
+            enableInWindow(mexr);
+        }
+
         //System.out.println(rt.name());
         try {
             for (Location loc : rt.allLineLocations()) {
                 BreakpointRequest br = mgr.createBreakpointRequest(loc);
-                br.enable();
+                if (multiThreaded) {
+                    br.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+                }
+                if (rt.equals(noopMainType)) {
+                    br.enable();
+                    continue;
+                }
+                enableInWindow(br);
+                // before the window, only what can start it stops the debuggee
+                if ( ! tracing &&
+                     (traceStart.isLineCount() || traceStart.matches(loc, jdi2json))) {
+                    br.enable();
+                }
             }
         }
         catch (AbsentInformationException e) {
             if (!rt.name().contains("$Lambda$"))
-                System.out.println("AIE!" + rt.name());
+                System.err.println("AIE!" + rt.name());
         }
     }
 
@@ -0,0 +1,265 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import com.sun.jdi.*;
+import com.sun.jdi.event.*;
+import com.sun.jdi.request.*;
+
+import java.util.*;
+
+/**
+ * The debugger's end of traceprinter.shoelace.Recorder, for the
+ * "instrumented" tracing strategy: hands it the Instrumenter's config and
+ * the user's classes as they are prepared, and takes the records it
+ * writes. The recorder's state is read and written with JDI, while the
+ * debuggee is stopped.
+ */
+class RecorderLink implements JDI2JSON.ObjectIds {
+    private final VirtualMachine vm;
+    private final String config;
+
+    // null until the debuggee has loaded the recorder
+    private ClassType recorder = null;
+    private boolean ready = false;
+    // classes prepared before the recorder was ready
+    private List<ReferenceType> preparedEarly = new ArrayList<>();
+
+    // the recorder's idTable, the other way around
+    private Map<ObjectReference, Long> ids = new HashMap<>();
+
+    /**
+     * @param options The options the recorder needs, from the session.
+     */
+    RecorderLink(VirtualMachine vm, Instrumenter instrumenter, TraceSession session,
+                 boolean showStringsAsValues) {
+        this.vm = vm;
+        this.config = instrumenter.config() + "O\t" + session.maxSteps +
+            "\t" + session.maxStackSize + "\t" + session.maxArrayLength +
+            "\t" + session.arrayWindow + "\t" + showStringsAsValues + "\n";
+    }
+
+    static boolean isRecorder(ReferenceType rt) {
+        return rt.name().equals(Instrumenter.RECORDER);
+    }
+
+    /**
+     * Sets the breakpoints the recorder calls for us.
+     */
+    void recorderPrepared(ReferenceType rt, EventRequestManager mgr) {
+        recorder = (ClassType)rt;
+        for (String name : new String[] {"ready", "drained", "failed"}) {
+            Method method = recorder.methodsByName(name).get(0);
+            mgr.createBreakpointRequest(method.location()).enable();
+        }
+    }
+
+    /**
+     * @return The recorder method the event is in ("ready", "drained" or
+     * "failed"), or null if it is somewhere else.
+     */
+    String recorderMethod(LocatableEvent event) {
+        Location loc = event.location();
+        if (recorder == null || ! loc.declaringType().equals(recorder)) {
+            return null;
+        }
+        return loc.method().name();
+    }
+
+    /**
+     * Hands over the config; the debuggee is stopped in ready().
+     *
+     * @return False if there are more classes than the recorder has room
+     * for.
+     */
+    boolean handOver(int steps) {
+        StringReference text = vm.mirrorOf(config);
+        text.disableCollection();
+        try {
+            set("config", text);
+        } finally {
+            text.enableCollection();
+        }
+        setSteps(steps);
+        ready = true;
+        for (ReferenceType rt : preparedEarly) {
+            if ( ! addPrepared(rt)) return false;
+        }
+        preparedEarly = null;
+        return true;
+    }
+
+    /**
+     * Tells the recorder about a user class, for the globals.
+     *
+     * @return False if the recorder has no room for it.
+     */
+    boolean addPrepared(ReferenceType rt) {
+        if ( ! ready) {
+            preparedEarly.add(rt);
+            return true;
+        }
+        ArrayReference prepared = (ArrayReference)get("prepared");
+        int count = intValue("preparedCount");
+        if (count == prepared.length()) {
+            return false;
+        }
+        try {
+            prepared.setValue(count, rt.classObject());
+        } catch (InvalidTypeException | ClassNotLoadedException e) {
+            throw new RuntimeException(e);
+        }
+        set("preparedCount", vm.mirrorOf(count + 1));
+        return true;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return The records handed over in drained().
+     */
+    String drainedText() {
+        return ((StringReference)get("drainedText")).value();
+    }
+
+    /**
+     * Takes the records that haven't been drained yet; the debuggee may be
+     * stopped anywhere.
+     */
+    String takeBuffered() {
+        int length = intValue("length");
+        if (length == 0) {
+            return "";
+        }
+        ArrayReference buffer = (ArrayReference)get("buffer");
+        StringBuilder result = new StringBuilder(length);
+        for (Value v : buffer.getValues(0, length)) {
+            result.append(((CharValue)v).value());
+        }
+        set("length", vm.mirrorOf(0));
+        return result.toString();
+    }
+
+    String failure() {
+        return ((StringReference)get("failure")).value();
+    }
+
+    /**
+     * Takes the value the recorder would show as the next
+     * last_return_value, so that the debugger's own step can show it.
+     *
+     * @return The value, or null if there is none.
+     */
+    Value takeReturned() {
+        if ( ! ((BooleanValue)get("hasReturned")).value()) {
+            return null;
+        }
+        ObjectReference returned = (ObjectReference)get("returned");
+        char kind = ((CharValue)get("returnedKind")).value();
+        set("hasReturned", vm.mirrorOf(false));
+        set("returned", null);
+        if (kind == 'L' || returned == null) {
+            return returned;
+        }
+        // a boxed primitive
+        return returned.getValue(returned.referenceType().fieldByName("value"));
+    }
+
+    void setSteps(int steps) {
+        set("steps", vm.mirrorOf(steps));
+    }
+
+    /**
+     * After a step the debugger made itself: the recorder has to check
+     * where it is, and can't skip its next step as unchanged.
+     */
+    void afterOwnStep(int steps) {
+        setSteps(steps);
+        set("resync", vm.mirrorOf(true));
+        set("lastRecord", null);
+    }
+
+    /**
+     * Gives the debugger's own steps the recorder's ids, adding the
+     * objects it hasn't shown yet to its idTable.
+     */
+    @Override
+    public long idOf(ObjectReference obj) {
+        Long id = ids.get(obj);
+        if (id == null) {
+            readIdTable();
+            id = ids.get(obj);
+        }
+        if (id == null) {
+            id = addId(obj);
+        }
+        return id;
+    }
+
+    private void readIdTable() {
+        ids.clear();
+        ArrayReference table = (ArrayReference)get("idTable");
+        int nextId = intValue("nextId");
+        if (nextId <= 1) return;
+        List<Value> values = table.getValues(1, nextId - 1);
+        for (int i = 0; i < values.size(); i++) {
+            ids.put((ObjectReference)values.get(i), (long)(i + 1));
+        }
+    }
+
+    private long addId(ObjectReference obj) {
+        ArrayReference table = (ArrayReference)get("idTable");
+        int nextId = intValue("nextId");
+        try {
+            if (nextId == table.length()) {
+                ArrayReference bigger = ((ArrayType)table.referenceType())
+                    .newInstance(nextId * 2);
+                bigger.disableCollection();
+                try {
+                    bigger.setValues(0, table.getValues(), 0, -1);
+                    set("idTable", bigger);
+                } finally {
+                    bigger.enableCollection();
+                }
+                table = bigger;
+            }
+            table.setValue(nextId, obj);
+        } catch (InvalidTypeException | ClassNotLoadedException e) {
+            throw new RuntimeException(e);
+        }
+        set("nextId", vm.mirrorOf(nextId + 1));
+        ids.put(obj, (long)nextId);
+        return nextId;
+    }
+
+    /* fields of the recorder */
+
+    private Value get(String name) {
+        return recorder.getValue(recorder.fieldByName(name));
+    }
+
+    private int intValue(String name) {
+        return ((IntegerValue)get(name)).value();
+    }
+
+    private void set(String name, Value value) {
+        try {
+            recorder.setValue(recorder.fieldByName(name), value);
+        } catch (InvalidTypeException | ClassNotLoadedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
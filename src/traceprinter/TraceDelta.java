@@ -0,0 +1,348 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.io.*;
+import java.util.*;
+import javax.json.*;
+
+/**
+ * Encodes and decodes the delta trace format.
+ *
+ * With the "deltaTrace" option, each execution point after the first only
+ * carries what changed since the previous one. See the "Delta traces"
+ * section of doc/opt-trace-format.md for the format. decode() is the
+ * reference decoder; it rebuilds the usual full trace.
+ */
+public class TraceDelta {
+    // keys rebuilt from the previous step rather than copied from the delta
+    private static final List<String> DIFFED_KEYS = Arrays.asList(
+        "stdout", "stack_to_render", "globals", "ordered_globals", "heap");
+
+    // keys that only appear in deltas
+    private static final List<String> DELTA_KEYS = Arrays.asList(
+        "delta", "stdout_append", "stack_pop", "stack_push", "frame_updates",
+        "globals_set", "globals_removed", "heap_set", "heap_removed");
+
+    private JsonObject previous = null;
+
+    /**
+     * Encodes the next execution point of a trace.
+     *
+     * Records without a stack (such as "instruction_limit_reached") are
+     * passed through, and don't become the base for the next delta.
+     */
+    public JsonObject encode(JsonObject step) {
+        if ( ! step.containsKey("stack_to_render")) {
+            return step;
+        }
+        JsonObject base = previous;
+        previous = step;
+        if (base == null) {
+            return step;
+        }
+
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        result.add("delta", true);
+        for (Map.Entry<String, JsonValue> me : step.entrySet()) {
+            if ( ! DIFFED_KEYS.contains(me.getKey())) {
+                result.add(me.getKey(), me.getValue());
+            }
+        }
+
+        String oldOut = base.getString("stdout", "");
+        String newOut = step.getString("stdout", "");
+        if (newOut.startsWith(oldOut)) {
+            if (newOut.length() > oldOut.length()) {
+                result.add("stdout_append", newOut.substring(oldOut.length()));
+            }
+        } else {
+            result.add("stdout", newOut);
+        }
+
+        addStackDelta(base.getJsonArray("stack_to_render"),
+                      step.getJsonArray("stack_to_render"), result);
+        addObjectDelta(base.getJsonObject("globals"),
+                       step.getJsonObject("globals"),
+                       "globals_set", "globals_removed", result);
+        if ( ! step.get("ordered_globals").equals(base.get("ordered_globals"))) {
+            result.add("ordered_globals", step.get("ordered_globals"));
+        }
+        addObjectDelta(base.getJsonObject("heap"), step.getJsonObject("heap"),
+                       "heap_set", "heap_removed", result);
+        return result.build();
+    }
+
+    /**
+     * Frames are compared bottom up: the frames both stacks share keep
+     * their place and only list what changed; the rest of the old stack
+     * is popped, and the rest of the new stack is pushed.
+     */
+    private void addStackDelta(JsonArray oldStack, JsonArray newStack,
+                               JsonObjectBuilder result) {
+        int oldSize = oldStack.size(), newSize = newStack.size();
+        int shared = 0;
+        while (shared < oldSize && shared < newSize &&
+               sameFunction(oldStack.getJsonObject(oldSize - 1 - shared),
+                            newStack.getJsonObject(newSize - 1 - shared))) {
+            shared++;
+        }
+
+        JsonObjectBuilder updates = Json.createObjectBuilder();
+        boolean anyUpdates = false;
+        for (int i = 0; i < shared; i++) {
+            JsonObject oldFrame = oldStack.getJsonObject(oldSize - 1 - i);
+            JsonObject newFrame = newStack.getJsonObject(newSize - 1 - i);
+            JsonObjectBuilder update = Json.createObjectBuilder();
+            boolean changed = false;
+            JsonArrayBuilder removed = Json.createArrayBuilder();
+            for (String key : oldFrame.keySet()) {
+                if ( ! newFrame.containsKey(key)) {
+                    removed.add(key);
+                    changed = true;
+                }
+            }
+            for (Map.Entry<String, JsonValue> me : newFrame.entrySet()) {
+                String key = me.getKey();
+                if (key.equals("encoded_locals")) {
+                    changed |= addObjectDelta(oldFrame.getJsonObject(key),
+                                              (JsonObject)me.getValue(),
+                                              "locals_set", "locals_removed",
+                                              update);
+                } else if ( ! me.getValue().equals(oldFrame.get(key))) {
+                    update.add(key, me.getValue());
+                    changed = true;
+                }
+            }
+            if (changed) {
+                JsonArray removedKeys = removed.build();
+                if ( ! removedKeys.isEmpty()) {
+                    update.add("keys_removed", removedKeys);
+                }
+                updates.add("" + i, update);
+                anyUpdates = true;
+            }
+        }
+        if (anyUpdates) {
+            result.add("frame_updates", updates);
+        }
+
+        if (oldSize > shared) {
+            result.add("stack_pop", oldSize - shared);
+        }
+        if (newSize > shared) {
+            JsonArrayBuilder pushed = Json.createArrayBuilder();
+            for (int i = 0; i < newSize - shared; i++) {
+                pushed.add(newStack.get(i));
+            }
+            result.add("stack_push", pushed);
+        }
+    }
+
+    // "main:12" and "main:13" are the same function
+    private static boolean sameFunction(JsonObject a, JsonObject b) {
+        String fa = a.getString("func_name"), fb = b.getString("func_name");
+        int ca = fa.lastIndexOf(':'), cb = fb.lastIndexOf(':');
+        return (ca < 0 ? fa : fa.substring(0, ca))
+            .equals(cb < 0 ? fb : fb.substring(0, cb));
+    }
+
+    /**
+     * Adds the entries of newer that differ from older under setKey, and
+     * the names of the entries only older has under removedKey.
+     *
+     * @return True if anything was added.
+     */
+    private static boolean addObjectDelta(JsonObject older, JsonObject newer,
+                                          String setKey, String removedKey,
+                                          JsonObjectBuilder result) {
+        JsonObjectBuilder set = Json.createObjectBuilder();
+        JsonArrayBuilder removed = Json.createArrayBuilder();
+        boolean anySet = false, anyRemoved = false;
+        for (Map.Entry<String, JsonValue> me : newer.entrySet()) {
+            if ( ! me.getValue().equals(older.get(me.getKey()))) {
+                set.add(me.getKey(), me.getValue());
+                anySet = true;
+            }
+        }
+        for (String key : older.keySet()) {
+            if ( ! newer.containsKey(key)) {
+                removed.add(key);
+                anyRemoved = true;
+            }
+        }
+        if (anySet) result.add(setKey, set);
+        if (anyRemoved) result.add(removedKey, removed);
+        return anySet || anyRemoved;
+    }
+
+    /**
+     * Rebuilds the full trace from a delta trace.
+     *
+     * Full steps, including all steps of a trace made without
+     * "deltaTrace", come back unchanged.
+     */
+    public static JsonArray decode(JsonArray trace) {
+        JsonArrayBuilder result = Json.createArrayBuilder();
+        JsonObject previous = null;
+        for (JsonValue v : trace) {
+            JsonObject step = (JsonObject)v;
+            if (step.getBoolean("delta", false)) {
+                step = apply(previous, step);
+            }
+            if (step.containsKey("stack_to_render")) {
+                previous = step;
+            }
+            result.add(step);
+        }
+        return result.build();
+    }
+
+    /**
+     * Applies one delta to the full step before it.
+     */
+    public static JsonObject apply(JsonObject previous, JsonObject delta) {
+        JsonObjectBuilder result = Json.createObjectBuilder();
+
+        if (delta.containsKey("stdout")) {
+            result.add("stdout", delta.get("stdout"));
+        } else if (previous.containsKey("stdout")) {
+            result.add("stdout", previous.getString("stdout") +
+                       delta.getString("stdout_append", ""));
+        } else if (delta.containsKey("stdout_append")) {
+            // with "incrementalStdout", every step only has its own output
+            result.add("stdout_append", delta.get("stdout_append"));
+        }
+        for (Map.Entry<String, JsonValue> me : delta.entrySet()) {
+            if ( ! DIFFED_KEYS.contains(me.getKey()) &&
+                 ! DELTA_KEYS.contains(me.getKey())) {
+                result.add(me.getKey(), me.getValue());
+            }
+        }
+
+        // rebuild the stack bottom up
+        JsonArray oldStack = previous.getJsonArray("stack_to_render");
+        int shared = oldStack.size() - delta.getInt("stack_pop", 0);
+        JsonObject updates = delta.containsKey("frame_updates")
+            ? delta.getJsonObject("frame_updates")
+            : Json.createObjectBuilder().build();
+        List<JsonValue> bottomUp = new ArrayList<>();
+        for (int i = 0; i < shared; i++) {
+            JsonObject frame = oldStack.getJsonObject(oldStack.size() - 1 - i);
+            if (updates.containsKey("" + i)) {
+                frame = applyFrameUpdate(frame, updates.getJsonObject("" + i));
+            }
+            bottomUp.add(frame);
+        }
+        if (delta.containsKey("stack_push")) {
+            JsonArray pushed = delta.getJsonArray("stack_push");
+            for (int i = pushed.size() - 1; i >= 0; i--) {
+                bottomUp.add(pushed.get(i));
+            }
+        }
+        JsonArrayBuilder stack = Json.createArrayBuilder();
+        for (int i = bottomUp.size() - 1; i >= 0; i--) {
+            stack.add(bottomUp.get(i));
+        }
+        result.add("stack_to_render", stack);
+
+        result.add("globals", applyObjectDelta(previous.getJsonObject("globals"),
+                                               delta, "globals_set", "globals_removed"));
+        result.add("ordered_globals", delta.containsKey("ordered_globals")
+                   ? delta.get("ordered_globals")
+                   : previous.get("ordered_globals"));
+        result.add("heap", applyObjectDelta(previous.getJsonObject("heap"),
+                                            delta, "heap_set", "heap_removed"));
+        return result.build();
+    }
+
+    // keys of a frame update that aren't frame keys
+    private static final List<String> FRAME_DELTA_KEYS = Arrays.asList(
+        "locals_set", "locals_removed", "keys_removed");
+
+    private static JsonObject applyFrameUpdate(JsonObject frame, JsonObject update) {
+        Set<String> removed = new HashSet<>();
+        if (update.containsKey("keys_removed")) {
+            for (JsonString s : update.getJsonArray("keys_removed").getValuesAs(JsonString.class)) {
+                removed.add(s.getString());
+            }
+        }
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> me : frame.entrySet()) {
+            String key = me.getKey();
+            if (removed.contains(key)) {
+                continue;
+            } else if (key.equals("encoded_locals")) {
+                result.add(key, applyObjectDelta((JsonObject)me.getValue(), update,
+                                                 "locals_set", "locals_removed"));
+            } else if (update.containsKey(key)) {
+                result.add(key, update.get(key));
+            } else {
+                result.add(key, me.getValue());
+            }
+        }
+        for (Map.Entry<String, JsonValue> me : update.entrySet()) {
+            if ( ! frame.containsKey(me.getKey()) &&
+                 ! FRAME_DELTA_KEYS.contains(me.getKey())) {
+                result.add(me.getKey(), me.getValue());
+            }
+        }
+        return result.build();
+    }
+
+    private static JsonObject applyObjectDelta(JsonObject older, JsonObject delta,
+                                               String setKey, String removedKey) {
+        JsonObject set = delta.containsKey(setKey)
+            ? delta.getJsonObject(setKey)
+            : Json.createObjectBuilder().build();
+        Set<String> removed = new HashSet<>();
+        if (delta.containsKey(removedKey)) {
+            for (JsonString s : delta.getJsonArray(removedKey).getValuesAs(JsonString.class)) {
+                removed.add(s.getString());
+            }
+        }
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> me : older.entrySet()) {
+            if (removed.contains(me.getKey())) continue;
+            result.add(me.getKey(), set.containsKey(me.getKey())
+                       ? set.get(me.getKey())
+                       : me.getValue());
+        }
+        for (Map.Entry<String, JsonValue> me : set.entrySet()) {
+            if ( ! older.containsKey(me.getKey())) {
+                result.add(me.getKey(), me.getValue());
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * Reads a delta trace (the whole output object) on stdin and prints
+     * the same output with the full trace.
+     */
+    public static void main(String[] args) throws IOException {
+        JsonObject output = Json.createReader(
+            new InputStreamReader(System.in, "UTF-8")).readObject();
+        JsonObjectBuilder result = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> me : output.entrySet()) {
+            if (me.getKey().equals("trace")) {
+                result.add("trace", decode((JsonArray)me.getValue()));
+            } else {
+                result.add(me.getKey(), me.getValue());
+            }
+        }
+        PrintStream out = new PrintStream(System.out, true, "UTF-8");
+        out.print(result.build());
+    }
+}
@@ -0,0 +1,219 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.util.*;
+
+import javax.json.*;
+
+/**
+ * Where the time of a trace job went, and how much work it was.
+ *
+ * Every job has one (TraceSession.metrics). With the "metrics" option,
+ * it is written into the output; see the "Metrics" section of
+ * doc/opt-trace-format.md. TraceServer also adds the metrics of every
+ * job to histograms shared by all jobs (see record and histograms), so
+ * that each phase can be given its own latency target.
+ */
+public class TraceMetrics {
+    /**
+     * The phases of a job, in the order they happen. "stage" (loading
+     * the user's classes into the debuggee) happens during "trace",
+     * and is counted in both.
+     */
+    enum Phase {
+        PARSE, COMPILE, LAUNCH, STAGE, TRACE, SERIALIZE;
+
+        String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    // events taken off the JDI event queue
+    int events = 0;
+    // of those, steps and breakpoints dropped since another one arrived
+    // at the same place in the same event set
+    int duplicateEvents = 0;
+    // step requests enabled, with the "step" tracing strategy
+    int stepRequests = 0;
+    // steps written, including "instruction_limit_reached" records
+    int steps = 0;
+    // execution points dropped since nothing changed; see JDI2JSON.addIfChanged
+    int suppressed = 0;
+    // objects converted for the heap of a step
+    int heapObjects = 0;
+    // bytes of output, as counted by TraceSession
+    long outputBytes = 0;
+
+    /**
+     * @return A timestamp to pass to end.
+     */
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time since began (from begin()) to the phase. A phase
+     * may be timed in several pieces.
+     */
+    synchronized void end(Phase phase, long began) {
+        phaseNanos[phase.ordinal()] += System.nanoTime() - began;
+    }
+
+    synchronized long nanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return The time since the job started.
+     */
+    long totalNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return The "metrics" block of the output. Times are in
+     * microseconds.
+     */
+    JsonObject toJson() {
+        JsonObjectBuilder phases = Json.createObjectBuilder();
+        for (Phase phase : Phase.values()) {
+            phases.add(phase.key(), nanos(phase) / 1000);
+        }
+        phases.add("total", totalNanos() / 1000);
+        return Json.createObjectBuilder()
+            .add("phases_us", phases)
+            .add("events", events)
+            .add("duplicate_events", duplicateEvents)
+            .add("step_requests", stepRequests)
+            .add("steps", steps)
+            .add("suppressed_steps", suppressed)
+            .add("heap_objects", heapObjects)
+            .add("output_bytes", outputBytes)
+            .build();
+    }
+
+    /* histograms over all jobs */
+
+    /**
+     * Counts values in buckets of powers of two: bucket i holds the
+     * values below 2^i (and at least 2^(i-1)), so percentiles are only
+     * known to within a factor of two.
+     */
+    static class Histogram {
+        private final long[] buckets = new long[64];
+        private long count = 0;
+        private long sum = 0;
+        private long max = 0;
+
+        void add(long value) {
+            value = Math.max(0, value);
+            buckets[64 - Long.numberOfLeadingZeros(value)]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        /**
+         * @return An upper bound for the given fraction of the values.
+         */
+        long percentile(double fraction) {
+            long wanted = (long)Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= wanted && seen > 0) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        JsonObject toJson() {
+            JsonObjectBuilder counts = Json.createObjectBuilder();
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] > 0) {
+                    counts.add("<" + (i == 63 ? Long.MAX_VALUE : 1L << i), buckets[i]);
+                }
+            }
+            return Json.createObjectBuilder()
+                .add("count", count)
+                .add("mean", count == 0 ? 0 : sum / count)
+                .add("p50", percentile(0.50))
+                .add("p95", percentile(0.95))
+                .add("p99", percentile(0.99))
+                .add("max", max)
+                .add("buckets", counts)
+                .build();
+        }
+    }
+
+    // phase times in microseconds, then "total"
+    private static final Map<String, Histogram> phaseHistograms =
+        new LinkedHashMap<>();
+    private static final Map<String, Histogram> counterHistograms =
+        new LinkedHashMap<>();
+
+    private static void add(Map<String, Histogram> histograms, String key,
+                            long value) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(key, histogram);
+        }
+        histogram.add(value);
+    }
+
+    /**
+     * Adds a finished job to the histograms.
+     */
+    static void record(TraceMetrics metrics) {
+        synchronized (phaseHistograms) {
+            for (Phase phase : Phase.values()) {
+                add(phaseHistograms, phase.key(), metrics.nanos(phase) / 1000);
+            }
+            add(phaseHistograms, "total", metrics.totalNanos() / 1000);
+            add(counterHistograms, "events", metrics.events);
+            add(counterHistograms, "duplicate_events", metrics.duplicateEvents);
+            add(counterHistograms, "step_requests", metrics.stepRequests);
+            add(counterHistograms, "steps", metrics.steps);
+            add(counterHistograms, "suppressed_steps", metrics.suppressed);
+            add(counterHistograms, "heap_objects", metrics.heapObjects);
+            add(counterHistograms, "output_bytes", metrics.outputBytes);
+        }
+    }
+
+    /**
+     * @return The histograms of every job recorded so far.
+     */
+    static JsonObject histograms() {
+        synchronized (phaseHistograms) {
+            JsonObjectBuilder phases = Json.createObjectBuilder();
+            for (Map.Entry<String, Histogram> me : phaseHistograms.entrySet()) {
+                phases.add(me.getKey(), me.getValue().toJson());
+            }
+            JsonObjectBuilder counters = Json.createObjectBuilder();
+            for (Map.Entry<String, Histogram> me : counterHistograms.entrySet()) {
+                counters.add(me.getKey(), me.getValue().toJson());
+            }
+            return Json.createObjectBuilder()
+                .add("phases_us", phases)
+                .add("counters", counters)
+                .build();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.util.*;
+
+import javax.json.*;
+import javax.json.stream.*;
+
+/**
+ * Where the steps of a trace go.
+ *
+ * It may be used by the tracing thread and the job's own thread at once
+ * (see Watchdog), and ignores everything once it is finished.
+ *
+ * By default the steps are collected and written as one JSON document
+ * ({"stdin": ..., "trace": [...]}) when the trace is finished. With the
+ * "streamTrace" option, they are written as newline-delimited JSON
+ * instead: a header line, one line per step as soon as it is produced,
+ * and a trailer line saying how the trace ended. Nothing is kept, so the
+ * debugger's memory doesn't grow with the length of the trace. See the
+ * "Streaming traces" section of doc/opt-trace-format.md.
+ *
+ * Without streaming, the steps are kept until the trace is finished (an
+ * error replaces them all), and then written straight into the output by
+ * the generator that writes the rest of the document; the document is
+ * never built as one String.
+ */
+public class TraceOutput {
+    // Json.createGenerator looks up the provider every time
+    private static final JsonGeneratorFactory generators =
+        Json.createGeneratorFactory(null);
+
+    private final TraceSession session;
+
+    private boolean streaming = false;
+    private boolean started = false;
+    private boolean finished = false;
+
+    // the steps so far; only kept when not streaming
+    private List<JsonObject> trace = new ArrayList<>();
+
+    private int steps = 0;
+
+    TraceOutput(TraceSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Chooses between streaming and a single document; must be called
+     * before anything is written.
+     */
+    void setStreaming(boolean streaming) {
+        if (started) {
+            throw new IllegalStateException("trace output already started");
+        }
+        this.streaming = streaming;
+    }
+
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return True once the trace (or its error) has been written.
+     */
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    synchronized void addStep(JsonObject step) {
+        if (finished) return;
+        steps++;
+        session.metrics.steps = steps;
+        if (streaming) {
+            long began = TraceMetrics.begin();
+            startStream();
+            printLine(step);
+            session.metrics.end(TraceMetrics.Phase.SERIALIZE, began);
+        } else {
+            trace.add(step);
+        }
+    }
+
+    /**
+     * Ends the trace normally.
+     *
+     * @param termination Why the trace ended, for the trailer.
+     */
+    synchronized void finish(String termination) {
+        if (finished) return;
+        long began = TraceMetrics.begin();
+        if (streaming) {
+            startStream();
+            printTrailer(trailer(termination).build(), began);
+        } else {
+            printDocument(began);
+        }
+        finished = true;
+    }
+
+    void finishWithError(String termination, String errmsg) {
+        finishWithError(termination, errmsg, "", 0, 0);
+    }
+
+    /**
+     * Ends the trace with an error. Without streaming, the steps so far
+     * are dropped and the error becomes the whole trace, as before.
+     */
+    synchronized void finishWithError(String termination, String errmsg,
+                                      String fileName, long row, long col) {
+        if (finished) return;
+        long began = TraceMetrics.begin();
+        JsonObject error = JDI2JSON.errorEvent(errmsg, fileName, row, col);
+        if (streaming) {
+            startStream();
+            printTrailer(trailer(termination).add("error", error).build(), began);
+        } else {
+            trace = Collections.singletonList(error);
+            printDocument(began);
+        }
+        finished = true;
+    }
+
+    /**
+     * Writes {"stdin": ..., "trace": [...], "userlog": ...}.
+     */
+    private void printDocument(long began) {
+        JsonGenerator generator = generators.createGenerator(session.writer());
+        generator.writeStartObject().write("stdin", session.stdin);
+        generator.writeStartArray("trace");
+        for (JsonObject step : trace) {
+            generator.write(step);
+        }
+        generator.writeEnd();
+        trace = null;
+        if (session.getUserlog() != null) {
+            generator.write("userlog", session.getUserlog());
+        }
+        printEnd(generator, began);
+    }
+
+    /**
+     * Writes the trailer line of a streamed trace.
+     */
+    private void printTrailer(JsonObject trailer, long began) {
+        JsonGenerator generator = generators.createGenerator(session.writer());
+        printEnd(writeMembers(generator.writeStartObject(), trailer), began);
+        session.print("\n");
+    }
+
+    /**
+     * Ends the object being written, with the "metrics" block if it was
+     * asked for.
+     *
+     * The block is written after the rest is flushed, so that
+     * serializing and counting the output are included in it; only the
+     * block itself is left out of "output_bytes".
+     */
+    private void printEnd(JsonGenerator generator, long began) {
+        generator.flush();
+        session.metrics.end(TraceMetrics.Phase.SERIALIZE, began);
+        if (session.showMetrics) {
+            generator.write("metrics", session.metrics.toJson());
+        }
+        generator.writeEnd();
+        generator.flush();
+    }
+
+    /**
+     * Writes a line of a streamed trace.
+     */
+    private void printLine(JsonObject line) {
+        JsonGenerator generator = generators.createGenerator(session.writer());
+        // not closed, which would close the output
+        writeMembers(generator.writeStartObject(), line).writeEnd().flush();
+        session.print("\n");
+    }
+
+    /**
+     * Writes the members of the object into the one being generated; a
+     * generator can't write a whole JsonValue outside an array.
+     */
+    private static JsonGenerator writeMembers(JsonGenerator generator,
+                                              JsonObject obj) {
+        for (java.util.Map.Entry<String, JsonValue> me : obj.entrySet()) {
+            generator.write(me.getKey(), me.getValue());
+        }
+        return generator;
+    }
+
+    private void startStream() {
+        if (started) return;
+        started = true;
+        printLine(Json.createObjectBuilder()
+                  .add("type", "header")
+                  .add("stdin", session.stdin)
+                  .build());
+    }
+
+    private JsonObjectBuilder trailer(String termination) {
+        JsonObjectBuilder result = Json.createObjectBuilder()
+            .add("type", "trailer")
+            .add("termination", termination)
+            .add("steps", steps);
+        if (session.getUserlog() != null) {
+            result.add("userlog", session.getUserlog());
+        }
+        return result;
+    }
+}
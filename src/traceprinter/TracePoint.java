@@ -0,0 +1,133 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import com.sun.jdi.*;
+
+import java.util.regex.*;
+import javax.json.*;
+
+/**
+ * Where a trace window starts or stops: the value of the "TRACE_START" or
+ * "TRACE_STOP" visualizer arg. It is one of
+ *
+ *   - a number n: the n-th line run by the user's code, counting from 1;
+ *   - "File.java:12" (or "File:12"): line 12 of that file;
+ *   - "Class.method" (or just "method"): the entry to that method.
+ *
+ * Only the user's code is matched, so "main" doesn't also stop at the
+ * main of traceprinter's own launcher or of the JDK. See the "Trace windows" section of doc/opt-trace-format.md.
+ */
+class TracePoint {
+    private static final Pattern FILE_LINE = Pattern.compile("(.+):(\\d+)");
+
+    // 0 unless this is a number of lines run
+    final int linesRun;
+
+    // for "File.java:12"
+    private final String fileName;
+    private final int line;
+
+    // for "Class.method"; className is null for just "method"
+    private final String className;
+    private final String methodName;
+
+    private TracePoint(int linesRun, String fileName, int line,
+                       String className, String methodName) {
+        this.linesRun = linesRun;
+        this.fileName = fileName;
+        this.line = line;
+        this.className = className;
+        this.methodName = methodName;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the value isn't one of the
+     * forms above.
+     */
+    static TracePoint parse(String argName, JsonValue value) {
+        if (value instanceof JsonNumber) {
+            int n = ((JsonNumber)value).intValue();
+            if (n < 1) {
+                throw new IllegalArgumentException(
+                    argName + " must count lines from 1, not " + n);
+            }
+            return new TracePoint(n, null, 0, null, null);
+        }
+        if ( ! (value instanceof JsonString)) {
+            throw new IllegalArgumentException(
+                argName + " must be a number or a string");
+        }
+
+        String s = ((JsonString)value).getString().trim();
+        Matcher m = FILE_LINE.matcher(s);
+        if (m.matches()) {
+            String file = m.group(1);
+            if ( ! file.endsWith(".java")) {
+                file += ".java";
+            }
+            return new TracePoint(0, file, Integer.parseInt(m.group(2)),
+                                  null, null);
+        }
+
+        int dot = s.lastIndexOf('.');
+        String method = s.substring(dot + 1);
+        if ( ! method.matches("[\\w$<>]+")) {
+            throw new IllegalArgumentException(
+                argName + " should look like File.java:12, Class.method " +
+                "or a number, not " + s);
+        }
+        return new TracePoint(0, null, 0,
+                              dot < 0 ? null : s.substring(0, dot), method);
+    }
+
+    boolean isLineCount() {
+        return linesRun > 0;
+    }
+
+    /**
+     * @return True if reaching loc reaches this point. Never true for a
+     * number of lines run, or outside of the user's code.
+     */
+    boolean matches(Location loc, JDI2JSON jdi2json) {
+        JDI2JSON.CodeKind kind = jdi2json.kindOf(loc.method());
+        if (kind == JDI2JSON.CodeKind.BUILTIN || kind == JDI2JSON.CodeKind.LAMBDA) {
+            return false;
+        }
+        if (fileName != null) {
+            if (loc.lineNumber() != line) return false;
+            try {
+                return loc.sourceName().equals(fileName);
+            } catch (AbsentInformationException e) {
+                return false;
+            }
+        }
+        if (methodName != null) {
+            // a method is entered at its first instruction
+            Method method = loc.method();
+            return loc.codeIndex() == 0 &&
+                method.name().equals(methodName) &&
+                (className == null ||
+                 isNamed(method.declaringType().name(), className));
+        }
+        return false;
+    }
+
+    // "Outer$Inner" and "pkg.Main" can be given by their simple names
+    private static boolean isNamed(String typeName, String name) {
+        return typeName.equals(name) ||
+            typeName.endsWith("." + name) ||
+            typeName.endsWith("$" + name);
+    }
+}
@@ -0,0 +1,189 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.io.*;
+import java.net.*;
+
+import javax.json.*;
+
+import traceprinter.ramtools.CompileCache;
+
+/**
+ * Long-lived alternative to InMemory.main.
+ *
+ * Reads newline-delimited JSON jobs (the same objects InMemory.main takes)
+ * and answers each one with a single line holding its trace (or, with the
+ * "streamTrace" option, with the lines of its streamed trace, ending with
+ * the trailer line). This way only
+ * the first job pays for debugger VM startup, JDI bootstrap and loading
+ * javac.
+ *
+ * Usage:
+ *   java traceprinter.TraceServer             jobs on stdin, traces on stdout
+ *   java traceprinter.TraceServer --port N    jobs over TCP on localhost:N
+ *   java traceprinter.TraceServer --pool N    keep N debuggees launched
+ *   java traceprinter.TraceServer --cache-size N --cache-dir DIR
+ *                                             cache compilations in memory
+ *                                             (N entries) and on disk
+ *   java traceprinter.TraceServer --cache-dir-size N
+ *                                             keep at most N entries on
+ *                                             disk (default 10000)
+ *   java traceprinter.TraceServer --metrics FILE
+ *                                             write the histograms of the
+ *                                             job metrics to FILE on exit
+ *
+ * Over TCP, every connection is served on its own thread, and jobs on the
+ * same connection are answered in order.
+ *
+ * By default the debuggee pool is sized by VMPool.defaultSize();
+ * "--pool 0" launches a fresh debuggee for every job instead.
+ */
+public class TraceServer {
+
+    public static void main(String[] args) throws IOException {
+        int port = -1;
+        int poolSize = VMPool.defaultSize();
+        int cacheSize = 256;
+        File cacheDir = null;
+        int cacheDirSize = CompileCache.DEFAULT_MAX_DISK_ENTRIES;
+        File metricsFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--pool") && i + 1 < args.length) {
+                poolSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--cache-size") && i + 1 < args.length) {
+                cacheSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--cache-dir") && i + 1 < args.length) {
+                cacheDir = new File(args[++i]);
+            } else if (args[i].equals("--cache-dir-size") && i + 1 < args.length) {
+                cacheDirSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--metrics") && i + 1 < args.length) {
+                metricsFile = new File(args[++i]);
+            } else {
+                System.err.println("Usage: TraceServer [--port N] [--pool N] " +
+                                   "[--cache-size N] [--cache-dir DIR] " +
+                                   "[--cache-dir-size N] " +
+                                   "[--metrics FILE]");
+                System.exit(1);
+            }
+        }
+
+        // same sanity check as InMemory.main
+        traceprinter.shoelace.NoopMain.main(null);
+
+        final VMPool pool = poolSize > 0 ? new VMPool(poolSize) : null;
+        final CompileCache cache = new CompileCache(cacheSize, cacheDir,
+                                                    cacheDirSize);
+        final File metricsOut = metricsFile;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+                if (metricsOut != null) {
+                    writeMetrics(metricsOut);
+                }
+            }
+        });
+
+        if (port < 0) {
+            serve(System.in, System.out, pool, cache);
+            if (pool != null) {
+                pool.shutdown();
+            }
+            return;
+        }
+
+        ServerSocket server = new ServerSocket(port, 50,
+            InetAddress.getLoopbackAddress());
+        while (true) {
+            final Socket client = server.accept();
+            Thread handler = new Thread("trace-connection") {
+                @Override
+                public void run() {
+                    try (Socket s = client) {
+                        serve(s.getInputStream(), s.getOutputStream(),
+                              pool, cache);
+                    } catch (IOException e) {
+                        // client went away; nothing to answer
+                    }
+                }
+            };
+            handler.start();
+        }
+    }
+
+    /**
+     * Answers every job read from in, until in is exhausted.
+     */
+    static void serve(InputStream in, OutputStream out, VMPool pool,
+                      CompileCache cache) throws IOException {
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) continue;
+            runJob(line, out, pool, cache);
+        }
+    }
+
+    /**
+     * Traces a single job and writes its trace as one line.
+     */
+    static void runJob(String job, OutputStream out, VMPool pool,
+                       CompileCache cache) {
+        TraceSession session = new TraceSession(out);
+        session.vmPool = pool;
+        session.compileCache = cache;
+        try {
+            long began = TraceMetrics.begin();
+            JsonObject frontend_data =
+                Json.createReader(new StringReader(job)).readObject();
+            session.metrics.end(TraceMetrics.Phase.PARSE, began);
+            new InMemory(frontend_data, session);
+        } catch (JsonException e) {
+            session.output.finishWithError("internal_error",
+                "Internal error: could not parse job: " + e.getMessage());
+        } catch (RuntimeException e) {
+            session.output.finishWithError("internal_error",
+                "Internal error: " + e);
+        }
+        if ( ! session.output.isFinished()) {
+            // the tracing thread died without finishing its trace
+            session.output.finishWithError("internal_error",
+                "Internal error: the trace could not be completed.");
+        }
+        if ( ! session.output.isStreaming()) {
+            // streamed traces already end every line
+            session.print("\n");
+        }
+        TraceMetrics.record(session.metrics);
+    }
+
+    /**
+     * Writes the histograms of TraceMetrics to the file, as JSON.
+     */
+    static void writeMetrics(File file) {
+        try (Writer out = new OutputStreamWriter(
+                 new FileOutputStream(file), "UTF-8")) {
+            out.write(TraceMetrics.histograms().toString());
+            out.write("\n");
+        } catch (IOException e) {
+            System.err.println("Could not write metrics to " + file + ": " + e);
+        }
+    }
+}
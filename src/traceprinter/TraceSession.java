@@ -0,0 +1,164 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import traceprinter.ramtools.CompileCache;
+
+/**
+ * All of the state belonging to a single trace job.
+ *
+ * This used to live in statics (InMemory.stdin, JSONTracingThread.MAX_STEPS,
+ * JDI2JSON.userlogged, ...), which limited us to one job per debugger VM.
+ * Keeping it here lets TraceServer run many jobs in one process.
+ */
+public class TraceSession {
+    String stdin = "";
+
+    int maxSteps = 256;
+    int maxStackSize = 16;
+    // the time budgets of the job; see Watchdog. maxWalltimeSeconds is
+    // for the whole job, and the others cap their phase within it
+    double maxCompileSeconds = 10;
+    double maxLaunchSeconds = 10;
+    double maxWalltimeSeconds = 5;
+
+    // when the job has to end, as System.nanoTime; 0 until it started
+    private long deadline = 0;
+
+    // arrays longer than this are only shown in part; 0 (the default)
+    // shows them all
+    int maxArrayLength = 0;
+    // how many elements to show at each end of such an array, and
+    // around each index held by an integer local
+    int arrayWindow = 10;
+
+    // only the part of the run between these is traced; null for the
+    // start or end of the run
+    TracePoint traceStart = null;
+    TracePoint traceStop = null;
+
+    // where to get an already launched debuggee from; null to launch one
+    VMPool vmPool = null;
+
+    // earlier compilations to reuse; null to always run javac
+    CompileCache compileCache = null;
+
+    // where the time of this job went; see TraceMetrics
+    final TraceMetrics metrics = new TraceMetrics();
+    // whether the output shows the metrics ("metrics" option)
+    boolean showMetrics = false;
+
+    // where the steps go; see TraceOutput
+    final TraceOutput output = new TraceOutput(this);
+
+    private StringBuilder userlogged;
+
+    private final Writer out;
+
+    /**
+     * @param out Where the trace is written, as UTF-8.
+     */
+    public TraceSession(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(new FilterOutputStream(out) {
+            // set once writing failed; like a PrintStream, a client that
+            // went away is ignored, and the job just runs to its end
+            private boolean broken = false;
+
+            // counts the bytes for metrics.outputBytes
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                metrics.outputBytes += len;
+                if (broken) return;
+                try {
+                    this.out.write(b, off, len);
+                } catch (IOException e) {
+                    broken = true;
+                }
+            }
+
+            @Override
+            public void flush() {
+                if (broken) return;
+                try {
+                    this.out.flush();
+                } catch (IOException e) {
+                    broken = true;
+                }
+            }
+        }, StandardCharsets.UTF_8));
+    }
+
+    public void userlog(String S) {
+        if (userlogged == null) userlogged = new StringBuilder();
+        userlogged.append(S).append("\n");
+    }
+
+    /**
+     * @return Everything logged for the user so far, or null if nothing was.
+     */
+    String getUserlog() {
+        return userlogged == null ? null : userlogged.toString();
+    }
+
+    /**
+     * @return Where the job output is written; see print.
+     */
+    Writer writer() {
+        return out;
+    }
+
+    /**
+     * Writes the given string to the job output and flushes it.
+     */
+    void print(String str) {
+        try {
+            out.write(str);
+            out.flush();
+        } catch (IOException e) {
+            // can't happen; the stream underneath ignores its errors
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Starts the budget of the job, once maxWalltimeSeconds is known.
+     * Compiling, launching and tracing (again, when an instrumented run
+     * falls back to breakpoints) all count against it.
+     */
+    synchronized void startBudget() {
+        deadline = System.nanoTime() + (long)(maxWalltimeSeconds * 1e9);
+    }
+
+    /**
+     * @return When the job has to end, as System.nanoTime.
+     */
+    synchronized long deadline() {
+        return deadline;
+    }
+
+    /**
+     * @return True if the budget of this job is used up.
+     */
+    synchronized boolean hasExceededTimeLimit() {
+        return deadline != 0 && System.nanoTime() - deadline > 0;
+    }
+}
@@ -14,6 +14,7 @@ See README for documentation on this package.
 package traceprinter;
 
 import com.sun.jdi.*;
+import java.io.*;
 import java.util.*;
 
 public class VMCommander extends Thread {
@@ -21,6 +22,11 @@ public class VMCommander extends Thread {
     private InMemory im;
     private ThreadReference tr;
     private VirtualMachine vm;
+    // the directory the debuggee loads the recorder from, when the
+    // classes were rewritten to use it; see ByteClassLoader
+    private static final String RECORDER_URL =
+        new File(InMemory.RECORDER_PATH).getAbsoluteFile().toURI().toString();
+
     private Map<String, byte[]> classesToLoad;
     private String mainClassName;
 
@@ -34,7 +40,8 @@ public class VMCommander extends Thread {
         this.im = im;
         this.tr = tr;
         this.vm = im.vm;
-        this.classesToLoad = im.bytecode;
+        this.classesToLoad = im.instrumenter == null
+            ? im.bytecode : im.instrumenter.classes();
         this.mainClassName = im.mainClass;
     }
 
@@ -45,7 +52,8 @@ public class VMCommander extends Thread {
     ObjectReference VMCommandee_instance = null;
     public void run() {
         try {
-            vm.suspend();
+            // the tracing thread has suspended the debuggee for us
+            long began = TraceMetrics.begin();
 
             // first, make instance of ByteClassLoader
             ClassLoader_ = classType("java.lang.ClassLoader");
@@ -54,16 +62,21 @@ public class VMCommander extends Thread {
 
             ObjectReference ByteClassLoader_instance = instantiate("traceprinter.shoelace.ByteClassLoader");
 
-            // load the classes from their bytecodes
-            for (Map.Entry<String, byte[]> me : classesToLoad.entrySet())
-                call_i(ByteClassLoader_instance, "define", vm.mirrorOf(me.getKey()), mirrorOf(vm, me.getValue()));
+            // load the classes from their bytecodes, all in one go
+            call_i(ByteClassLoader_instance, "defineAll",
+                   mirrorOf(vm, packClasses(classesToLoad,
+                                            im.instrumenter == null ? "" : RECORDER_URL)));
 
             // load and instantiate Commandee. very similar to above!
             VMCommandee_instance = instantiate("traceprinter.shoelace.VMCommandee");
 
             ArrayReference mirrorOfArgs = newArray("java.lang.String", im.argsArray.size());
+            List<Value> args = new ArrayList<>();
             for (int i=0; i<im.argsArray.size(); i++)
-                mirrorOfArgs.setValue(i, vm.mirrorOf(im.argsArray.getString(i)));
+                args.add(vm.mirrorOf(im.argsArray.getString(i)));
+            if ( ! args.isEmpty())
+                mirrorOfArgs.setValues(args);
+            im.session.metrics.end(TraceMetrics.Phase.STAGE, began);
 
             StringReference result;
             try {
@@ -95,8 +108,13 @@ public class VMCommander extends Thread {
 
             vm.resume();
         }
+        catch (VMDisconnectedException e) {
+            // the debuggee was killed while its classes were loaded, e.g.
+            // at the deadline; the tracing thread says why
+            return;
+        }
         catch (Exception e) {
-            e.printStackTrace(System.out);
+            e.printStackTrace(System.err);
             throw new RuntimeException(e.toString());
         }
     }
@@ -156,12 +174,38 @@ public class VMCommander extends Thread {
         return Arrays.asList(vs);
     }
 
+    // the byte mirrors are made locally, so this is only two JDWP commands
+    // (create the array, then set all of its values) regardless of length
     private ArrayReference mirrorOf(VirtualMachine vm, byte[] bytes)
         throws InvalidTypeException, ClassNotLoadedException {
         ArrayReference result = newArray("byte", bytes.length);
-        for (int i=0; i < bytes.length; i++)
-            result.setValue(i, vm.mirrorOf(bytes[i]));
+        List<Value> values = new ArrayList<>(bytes.length);
+        for (byte b : bytes)
+            values.add(vm.mirrorOf(b));
+        if ( ! values.isEmpty())
+            result.setValues(values);
         return result;
     }
+
+    // packs class files in the format read by ByteClassLoader.defineAll
+    private static byte[] packClasses(Map<String, byte[]> classes,
+                                      String recorderPath) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(classes.size());
+            for (Map.Entry<String, byte[]> me : classes.entrySet()) {
+                out.writeUTF(me.getKey());
+                out.writeInt(me.getValue().length);
+                out.write(me.getValue());
+            }
+            out.writeUTF(recorderPath);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // can't happen when writing to memory
+            throw new RuntimeException(e);
+        }
+    }
 }
 
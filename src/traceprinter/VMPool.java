@@ -0,0 +1,186 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import com.sun.jdi.*;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A pool of debuggee VMs that are already launched and connected.
+ *
+ * Launching the debuggee and the JDWP handshake take most of the time of a
+ * short trace, so TraceServer keeps a few debuggees waiting. Each of them
+ * is launched on NoopMain and left suspended before main, which is exactly
+ * the state InMemory.launchVM hands back, so a job can use either one.
+ *
+ * A background thread refills the pool after every claim and periodically
+ * evicts idle VMs that died.
+ */
+public class VMPool {
+    static final String MAIN_CLASS = "traceprinter.shoelace.NoopMain";
+
+    // the -Xmx given to each debuggee in InMemory.launchVM
+    private static final long DEBUGGEE_MEMORY = 512L * 1024 * 1024;
+
+    private static final long HEALTH_CHECK_MILLIS = 5000;
+
+    private final int size;
+    private final LinkedBlockingQueue<VirtualMachine> idle =
+        new LinkedBlockingQueue<>();
+    private final Thread refiller;
+    private volatile boolean running = true;
+
+    /**
+     * Starts filling a pool of the given size in the background.
+     */
+    public VMPool(int size) {
+        this.size = size;
+        refiller = new Thread("vm-pool-refill") {
+            @Override
+            public void run() {
+                refillLoop();
+            }
+        };
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    /**
+     * A pool size that suits this machine: one debuggee per core, but no
+     * more than fit into the free physical memory.
+     */
+    public static int defaultSize() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int bySize = cores;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long free = ((com.sun.management.OperatingSystemMXBean)os)
+                .getFreePhysicalMemorySize();
+            bySize = (int)Math.min(cores, free / DEBUGGEE_MEMORY);
+        }
+        return Math.max(1, bySize);
+    }
+
+    /**
+     * Hands out a suspended debuggee sitting before NoopMain.main.
+     *
+     * Never waits for the pool: if no healthy debuggee is idle, one is
+     * launched right away, just as if there were no pool.
+     *
+     * @return The debuggee, or null if it could not be launched, as with
+     * InMemory.launchVM.
+     */
+    public VirtualMachine claim() {
+        VirtualMachine vm;
+        while ((vm = idle.poll()) != null) {
+            if (isHealthy(vm)) {
+                break;
+            }
+            discard(vm);
+        }
+        synchronized (this) {
+            notifyAll(); // time to refill
+        }
+        if (vm == null) {
+            vm = InMemory.launchVM(MAIN_CLASS);
+        }
+        return vm;
+    }
+
+    /**
+     * Stops refilling and kills every idle debuggee. A debuggee still
+     * being launched is killed by the refill thread once it is up.
+     */
+    public void shutdown() {
+        running = false;
+        refiller.interrupt();
+        VirtualMachine vm;
+        while ((vm = idle.poll()) != null) {
+            discard(vm);
+        }
+    }
+
+    private void refillLoop() {
+        while (running) {
+            try {
+                if (idle.size() < size) {
+                    VirtualMachine vm = InMemory.launchVM(MAIN_CLASS);
+                    if (vm == null) {
+                        // a failed launch, which launchVM already reported
+                        pause();
+                        continue;
+                    }
+                    idle.add(vm);
+                    if ( ! running && idle.remove(vm)) {
+                        // launched while shutdown emptied the pool
+                        discard(vm);
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    wait(HEALTH_CHECK_MILLIS);
+                }
+                evictDead();
+            } catch (InterruptedException e) {
+                // shutdown
+            } catch (RuntimeException e) {
+                // a failed launch
+                e.printStackTrace();
+                pause();
+            }
+        }
+    }
+
+    /**
+     * Waits a while before trying to launch again.
+     */
+    private void pause() {
+        try {
+            Thread.sleep(HEALTH_CHECK_MILLIS);
+        } catch (InterruptedException e) {
+            // shutdown
+        }
+    }
+
+    private void evictDead() {
+        for (VirtualMachine vm : idle) {
+            if ( ! isHealthy(vm) && idle.remove(vm)) {
+                discard(vm);
+            }
+        }
+    }
+
+    /**
+     * @return True if the debuggee process is alive and still answers.
+     */
+    private boolean isHealthy(VirtualMachine vm) {
+        try {
+            return vm.process().isAlive() && vm.allThreads() != null;
+        } catch (VMDisconnectedException e) {
+            return false;
+        }
+    }
+
+    private void discard(VirtualMachine vm) {
+        vm.process().destroyForcibly();
+        try {
+            vm.dispose();
+        } catch (VMDisconnectedException e) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.util.concurrent.*;
+
+/**
+ * Keeps every phase of a job within its time budget.
+ *
+ * The whole job has TraceSession.maxWalltimeSeconds, and compiling and
+ * launching the debuggee are also capped by their own budgets
+ * (maxCompileSeconds, maxLaunchSeconds). Neither can be interrupted where
+ * it is stuck, so they are run on a thread of their own, and the job
+ * stops waiting for them once their time is up; whatever they produce
+ * later is thrown away. A phase with nothing to throw away is interrupted
+ * as well, and the compiler stops for that between the phases of javac
+ * (see CompileToBytes); it can't stop in the middle of one. Tracing gets
+ * whatever is left; see InMemory.startDebuggerVM and
+ * JSONTracingThread.stopAtDeadline.
+ */
+class Watchdog {
+    /**
+     * Thrown when a phase ran out of time.
+     */
+    static class OutOfTimeException extends Exception {
+        /**
+         * @param phase The phase whose own budget ran out, or null if it
+         * was the budget of the job.
+         */
+        OutOfTimeException(String phase) {
+            super(phase == null ? "<exceeded max visualizer time limit>"
+                  : "<exceeded max visualizer " + phase + " time limit>");
+        }
+    }
+
+    /**
+     * What to do with the result of a phase that ran out of time, once it
+     * is there after all.
+     */
+    interface Leftover<T> {
+        void discard(T result);
+    }
+
+    private static final ExecutorService phases =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread result = new Thread(r, "watched-phase");
+                // a phase that never ends mustn't keep the debugger alive
+                result.setDaemon(true);
+                return result;
+            }
+        });
+
+    /**
+     * Runs the phase, waiting for it for at most the given time, and not
+     * past the deadline of the job.
+     *
+     * @param phase The name of the phase, for the exception message.
+     * @param deadline The deadline of the job, as System.nanoTime.
+     * @param leftover Gets the result if it comes too late; if null, the
+     * phase is interrupted instead.
+     * @throws OutOfTimeException If the phase took longer.
+     */
+    static <T> T callWithin(String phase, double seconds, long deadline,
+                            Callable<T> task, final Leftover<T> leftover)
+        throws OutOfTimeException {
+        long nanos = (long)(seconds * 1e9);
+        long left = deadline - System.nanoTime();
+        if (left < nanos) {
+            nanos = left;
+            phase = null;
+        }
+        if (nanos <= 0) {
+            throw new OutOfTimeException(phase);
+        }
+        final Future<T> future = phases.submit(task);
+        try {
+            return future.get(nanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            if (leftover == null) {
+                future.cancel(true);
+            } else {
+                phases.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            leftover.discard(future.get());
+                        } catch (InterruptedException | ExecutionException e) {
+                            // nothing was made, so nothing to throw away
+                        }
+                    }
+                });
+            }
+            throw new OutOfTimeException(phase);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @return The time left until the deadline (from System.nanoTime), in
+     * milliseconds, and at least 1 so that it can be passed to join.
+     */
+    static long millisUntil(long deadline) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+}
@@ -0,0 +1,396 @@
+package traceprinter.ramtools;
+
+import javax.tools.*;
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/***
+ A cache of compilation results, keyed by what was compiled.
+
+ The key is a SHA-256 hash of the (class name, source code) pairs, sorted
+ by name, together with the javac options and the Java version. Both
+ successful and failed compilations are cached, along with their
+ diagnostics, so a repeated compile error can be reported without
+ running javac at all.
+
+ There are two tiers: a bounded LRU map in memory, and optionally a
+ directory holding one file per key, which survives restarts and can be
+ shared by several processes. The directory is bounded too: once it
+ holds more than maxDiskEntries entries, the least recently used quarter
+ is deleted (a hit touches its file).
+***/
+
+public class CompileCache {
+
+    /**
+     * What one compilation produced.
+     */
+    public static class Entry {
+        // class name -> bytecode, or null if compilation failed
+        public final Map<String, byte[]> bytecodes;
+        public final List<Diagnostic<JavaFileObject>> diagnostics;
+
+        public Entry(Map<String, byte[]> bytecodes,
+                     List<Diagnostic<JavaFileObject>> diagnostics) {
+            this.bytecodes = bytecodes == null ? null
+                : Collections.unmodifiableMap(bytecodes);
+            this.diagnostics = Collections.unmodifiableList(diagnostics);
+        }
+    }
+
+    // bumped whenever the on-disk format changes
+    private static final int DISK_FORMAT = 1;
+
+    public static final int DEFAULT_MAX_DISK_ENTRIES = 10000;
+
+    private final Map<String, Entry> memory;
+    private final File directory;
+    private final int maxDiskEntries;
+    // how many entries are in the directory, as far as this process
+    // knows; recounted whenever it gets too high
+    private int diskEntries = 0;
+
+    /**
+     * @param maxEntries How many entries to keep in memory.
+     * @param directory Where to keep entries on disk, or null for no disk tier.
+     */
+    public CompileCache(int maxEntries, File directory) {
+        this(maxEntries, directory, DEFAULT_MAX_DISK_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries How many entries to keep in memory.
+     * @param directory Where to keep entries on disk, or null for no disk tier.
+     * @param maxDiskEntries How many entries to keep on disk.
+     */
+    public CompileCache(final int maxEntries, File directory, int maxDiskEntries) {
+        this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompileCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.directory = directory;
+        this.maxDiskEntries = maxDiskEntries;
+        if (directory != null) {
+            directory.mkdirs();
+            diskEntries = diskFiles().length;
+        }
+    }
+
+    /**
+     * Computes the cache key for compiling the given files with the given
+     * javac options.
+     */
+    public static String key(String[][] classCodePairs, Iterable<String> options) {
+        String[][] sorted = classCodePairs.clone();
+        Arrays.sort(sorted, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                return a[0].compareTo(b[0]);
+            }
+        });
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        update(digest, System.getProperty("java.version"));
+        for (String[] pair : sorted) {
+            update(digest, pair[0]);
+            update(digest, pair[1]);
+        }
+        if (options != null) {
+            for (String option : options) {
+                update(digest, option);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    // length-prefixed, so that ("ab", "c") and ("a", "bc") differ
+    private static void update(MessageDigest digest, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int n = bytes.length;
+        digest.update(new byte[] {
+            (byte)(n >>> 24), (byte)(n >>> 16), (byte)(n >>> 8), (byte)n });
+        digest.update(bytes);
+    }
+
+    /**
+     * @return The cached result for the key, or null if there is none.
+     */
+    public Entry get(String key) {
+        synchronized (memory) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        if (directory == null) {
+            return null;
+        }
+        Entry entry = readFromDisk(key);
+        if (entry != null) {
+            synchronized (memory) {
+                memory.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    public void put(String key, Entry entry) {
+        synchronized (memory) {
+            memory.put(key, entry);
+        }
+        if (directory != null) {
+            writeToDisk(key, entry);
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        File file = new File(directory, key);
+        if ( ! file.isFile()) {
+            return null;
+        }
+        // so that trimDisk keeps it
+        file.setLastModified(System.currentTimeMillis());
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != DISK_FORMAT) {
+                return null;
+            }
+            Map<String, byte[]> bytecodes = null;
+            if (in.readBoolean()) {
+                bytecodes = new TreeMap<>();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = readString(in);
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    bytecodes.put(name, bytes);
+                }
+            }
+            List<Diagnostic<JavaFileObject>> diagnostics = new ArrayList<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                diagnostics.add(CachedDiagnostic.read(in));
+            }
+            return new Entry(bytecodes, diagnostics);
+        } catch (IOException e) {
+            // unreadable or half-written; treat it as a miss
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        try {
+            // write to a temporary file first, so that readers never see
+            // a partial entry
+            File tmp = File.createTempFile(key, ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(DISK_FORMAT);
+                out.writeBoolean(entry.bytecodes != null);
+                if (entry.bytecodes != null) {
+                    out.writeInt(entry.bytecodes.size());
+                    for (Map.Entry<String, byte[]> me : entry.bytecodes.entrySet()) {
+                        writeString(out, me.getKey());
+                        out.writeInt(me.getValue().length);
+                        out.write(me.getValue());
+                    }
+                }
+                out.writeInt(entry.diagnostics.size());
+                for (Diagnostic<JavaFileObject> d : entry.diagnostics) {
+                    CachedDiagnostic.of(d).write(out);
+                }
+            }
+            File file = new File(directory, key);
+            boolean added = ! file.exists();
+            Files.move(tmp.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            if (added) {
+                synchronized (this) {
+                    if (++diskEntries > maxDiskEntries) {
+                        trimDisk();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the disk tier is only an optimization
+            System.err.println("Could not write compile cache entry: " + e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries on disk, down to three
+     * quarters of maxDiskEntries, so that this isn't done on every put.
+     * Other processes sharing the directory are counted too.
+     */
+    private void trimDisk() {
+        File[] files = diskFiles();
+        final Map<File, Long> lastUsed = new HashMap<>();
+        for (File file : files) {
+            lastUsed.put(file, file.lastModified());
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(lastUsed.get(a), lastUsed.get(b));
+            }
+        });
+        int keep = maxDiskEntries * 3 / 4;
+        int remaining = files.length;
+        for (File file : files) {
+            if (remaining <= keep) {
+                break;
+            }
+            // may already be gone, trimmed by another process
+            file.delete();
+            remaining--;
+        }
+        diskEntries = remaining;
+    }
+
+    /**
+     * @return The entries in the directory, without half-written ones.
+     */
+    private File[] diskFiles() {
+        File[] result = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && ! file.getName().endsWith(".tmp");
+            }
+        });
+        return result == null ? new File[0] : result;
+    }
+
+    // unlike writeUTF, not limited to 64K
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A diagnostic that outlives the compilation that reported it.
+     *
+     * The source is only kept by name, which is all that callers use.
+     */
+    static class CachedDiagnostic implements Diagnostic<JavaFileObject> {
+        private final Kind kind;
+        private final JavaFileObject source;
+        private final long position, startPosition, endPosition;
+        private final long lineNumber, columnNumber;
+        private final String code, message;
+
+        private CachedDiagnostic(Kind kind, String sourceName,
+                                 long position, long startPosition,
+                                 long endPosition, long lineNumber,
+                                 long columnNumber, String code,
+                                 String message) {
+            this.kind = kind;
+            this.source = sourceName == null ? null : new CachedSource(sourceName);
+            this.position = position;
+            this.startPosition = startPosition;
+            this.endPosition = endPosition;
+            this.lineNumber = lineNumber;
+            this.columnNumber = columnNumber;
+            this.code = code;
+            this.message = message;
+        }
+
+        static CachedDiagnostic of(Diagnostic<? extends JavaFileObject> d) {
+            if (d instanceof CachedDiagnostic) {
+                return (CachedDiagnostic)d;
+            }
+            return new CachedDiagnostic(
+                d.getKind(),
+                d.getSource() == null ? null : d.getSource().toString(),
+                d.getPosition(), d.getStartPosition(), d.getEndPosition(),
+                d.getLineNumber(), d.getColumnNumber(),
+                d.getCode(), d.getMessage(null));
+        }
+
+        static CachedDiagnostic read(DataInputStream in) throws IOException {
+            Kind kind = Kind.valueOf(readString(in));
+            String sourceName = readString(in);
+            long position = in.readLong();
+            long startPosition = in.readLong();
+            long endPosition = in.readLong();
+            long lineNumber = in.readLong();
+            long columnNumber = in.readLong();
+            String code = readString(in);
+            String message = readString(in);
+            return new CachedDiagnostic(kind, sourceName, position,
+                                        startPosition, endPosition,
+                                        lineNumber, columnNumber,
+                                        code, message);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            writeString(out, kind.name());
+            writeString(out, source == null ? null : source.toString());
+            out.writeLong(position);
+            out.writeLong(startPosition);
+            out.writeLong(endPosition);
+            out.writeLong(lineNumber);
+            out.writeLong(columnNumber);
+            writeString(out, code);
+            writeString(out, message);
+        }
+
+        public Kind getKind() { return kind; }
+        public JavaFileObject getSource() { return source; }
+        public long getPosition() { return position; }
+        public long getStartPosition() { return startPosition; }
+        public long getEndPosition() { return endPosition; }
+        public long getLineNumber() { return lineNumber; }
+        public long getColumnNumber() { return columnNumber; }
+        public String getCode() { return code; }
+        public String getMessage(Locale locale) { return message; }
+    }
+
+    /**
+     * Stands in for the RAMJavaFile a cached diagnostic came from.
+     */
+    private static class CachedSource extends SimpleJavaFileObject {
+        private final String name;
+
+        CachedSource(String name) {
+            super(URI.create("string:///cached"), Kind.SOURCE);
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+}
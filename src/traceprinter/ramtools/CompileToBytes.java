@@ -1,8 +1,10 @@
 package traceprinter.ramtools;
 
+import com.sun.source.util.*;
 import javax.tools.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.json.*;
 
 public class CompileToBytes {
@@ -19,17 +21,43 @@ public class CompileToBytes {
     public Iterable<String> classesForAnnotation = null;
     // names of classes to be processed by annotation processing, null means no class names
 
+    public CompileCache cache = null;
+    // earlier results to answer from; null means always run javac
+
+    public CompilerService service = CompilerService.shared();
+    // where the compiler and its file managers come from
+
     public Map<String, byte[]> bytecodes;
     // output variable: the class names and bytecodes generated by compiling
-    
-    private boolean used = false;
+
+    public long compileNanos;
+    // output variable: how long the last compileFiles call took
 
     public CompileToBytes() {}
 
+    // javac doesn't stop when its thread is interrupted (as Watchdog does
+    // when the compile time limit is up), so it is stopped between the
+    // phases of each file; a phase that never ends can't be stopped
+    private static final TaskListener STOP_IF_INTERRUPTED = new TaskListener() {
+        @Override
+        public void started(TaskEvent e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("interrupted");
+            }
+        }
+
+        @Override
+        public void finished(TaskEvent e) {
+        }
+    };
+
     /***
         Compiles a single source file to bytecode.
         Returns null if compilation failed (same as JavaCompiler.getTask.call => false).
         Otherwise, returns bytecode for files defined as a result of compiling.
+
+        A CompileToBytes can be used for any number of compilations, but
+        only by one thread at a time.
     ***/
 
     // takes a class name and its source code
@@ -38,21 +66,72 @@ public class CompileToBytes {
     }
 
     public Map<String, byte[]> compileFiles(String[][] classCodePairs) {
-        if (used) throw new RuntimeException("You already used this CompileToBytes.");
-        used = true;
-        
+        long start = System.nanoTime();
+        try {
+            return compileOrReuse(classCodePairs);
+        } finally {
+            compileNanos = System.nanoTime() - start;
+        }
+    }
+
+    private Map<String, byte[]> compileOrReuse(String[][] classCodePairs) {
+        bytecodes = null;
+
+        if (cache == null) {
+            return runCompiler(classCodePairs, diagnosticListener);
+        }
+
+        String key = CompileCache.key(classCodePairs, options);
+        CompileCache.Entry cached = cache.get(key);
+        if (cached != null) {
+            // replay what javac said the first time
+            if (diagnosticListener != null) {
+                for (Diagnostic<JavaFileObject> d : cached.diagnostics)
+                    diagnosticListener.report(d);
+            }
+            bytecodes = cached.bytecodes;
+            return bytecodes;
+        }
+
+        final List<Diagnostic<JavaFileObject>> reported = new ArrayList<>();
+        DiagnosticListener<JavaFileObject> recorder = new DiagnosticListener<JavaFileObject>() {
+            @Override
+            public void report(Diagnostic<? extends JavaFileObject> d) {
+                reported.add(CompileCache.CachedDiagnostic.of(d));
+                if (diagnosticListener != null)
+                    diagnosticListener.report(d);
+            }
+        };
+        Map<String, byte[]> result = runCompiler(classCodePairs, recorder);
+        cache.put(key, new CompileCache.Entry(result, reported));
+        return result;
+    }
+
+    private Map<String, byte[]> runCompiler(String[][] classCodePairs,
+                                            DiagnosticListener<? super JavaFileObject> listener) {
         ArrayList<RAMJavaFile> sourceFiles = new ArrayList<>();
         for (String[] pair : classCodePairs)
             sourceFiles.add(new RAMJavaFile(pair[0], pair[1]));
         
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-
-        RAMClassFileManager fileManager = new
-            RAMClassFileManager(compiler
-                                .getStandardFileManager(null, null, null));
+        JavaCompiler compiler = service.getCompiler();
 
-        boolean result = compiler.getTask(compilerOutput, fileManager, diagnosticListener, 
-                                          options, classesForAnnotation, sourceFiles).call();
+        long start = System.nanoTime();
+        StandardJavaFileManager standardManager = service.borrowFileManager();
+        RAMClassFileManager fileManager;
+        boolean result;
+        try {
+            fileManager = new RAMClassFileManager(standardManager);
+            JavaCompiler.CompilationTask task =
+                compiler.getTask(compilerOutput, fileManager, listener,
+                                 options, classesForAnnotation, sourceFiles);
+            if (task instanceof JavacTask) {
+                ((JavacTask)task).addTaskListener(STOP_IF_INTERRUPTED);
+            }
+            result = task.call();
+        } finally {
+            service.release(standardManager);
+            service.recordLatency(System.nanoTime() - start);
+        }
 
         if (!result) return null;
 
@@ -81,7 +160,8 @@ public class CompileToBytes {
     - if "Compile-Time Error": error (errmsg, filename, row, col, startpos, pos, endpos)
     - if "Success": bytecodes, [warning]
     
-    bytecodes is a map from class names (possibly including . and $) to bytecodes
+    bytecodes is a map from class names (possibly including . and $) to
+    Base64-encoded bytecodes
 
     */
 
@@ -99,48 +179,149 @@ public class CompileToBytes {
 
     */
 
+    /* batch mode: main("--batch")
+
+    standard input: one Json Object per line, each of the form
+    {"id": <any json value>, "files": <an object as in the single mode>}
+
+    The jobs are compiled in parallel, by one worker per core, and each
+    result is printed on its own line as soon as it is ready, so results
+    come out in no particular order. Each result is the same object as in
+    the single mode, with the job's "id" added.
+
+    */
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            batchMain();
+            return;
+        }
+
         InputStreamReader isr;
         try {
             isr = new InputStreamReader(System.in, "UTF-8");
         }
         catch (UnsupportedEncodingException e) {
-            System.out.println(Json
-                               .createObjectBuilder()
-                               .add("status", "Internal Error")
-                               .add("errmsg", "Could not set UTF-8 encoding")
-                               .build());
+            System.out.println(internalError("Could not set UTF-8 encoding"));
             return;
         }
 
         String[][] pairs;
         try {
             JsonReader jr = Json.createReader(isr);
-            JsonObject sourceFiles = jr.readObject();
-            pairs = new String[sourceFiles.size()][2];
-            int i = 0;
-            for (Map.Entry<String, JsonValue> pair : sourceFiles.entrySet()) {
-                pairs[i][0] = pair.getKey();
-                if (! (pair.getValue() instanceof JsonString)) {
-                    throw new RuntimeException("For key " + pair.getKey() +
-                                               " value is a " +
-                                               pair.getKey().getClass()+":\n"+
-                                               pair.getKey().toString());
-                }
-                pairs[i][1] = ((JsonString)pair.getValue()).getString();
-                i++;
-            }
+            pairs = parsePairs(jr.readObject());
         }
         catch (Throwable t) {
-            System.out.println(Json
-                               .createObjectBuilder()
-                               .add("status", "Internal Error")
-                               .add("errmsg", "Could not parse input: " + t)
-                               .build());
+            System.out.println(internalError("Could not parse input: " + t));
             return;            
         }
-        
+
+        System.out.println(compileToJson(pairs).build());
+    }
+
+    private static void batchMain() {
+        final PrintStream out;
+        BufferedReader in;
+        try {
+            out = new PrintStream(new FileOutputStream(FileDescriptor.out), false, "UTF-8");
+            in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            System.out.println(internalError("Could not set UTF-8 encoding"));
+            return;
+        }
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        // don't read further ahead than the workers can keep up with
+        final Semaphore inFlight = new Semaphore(2 * workers);
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                final String job = line;
+                inFlight.acquire();
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            String result = compileJob(job).toString();
+                            synchronized (out) {
+                                out.println(result);
+                                out.flush();
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            synchronized (out) {
+                out.println(internalError("Could not read input: " + e));
+                out.flush();
+            }
+        }
+        finally {
+            // lets the jobs already read finish; the workers aren't
+            // daemons, so without this the JVM would never exit
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+            catch (InterruptedException e) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    // compiles one line of batch input
+    private static JsonObject compileJob(String job) {
+        JsonValue id = JsonValue.NULL;
+        JsonObjectBuilder result;
+        try {
+            JsonObject jobObject = Json.createReader(new StringReader(job)).readObject();
+            if (jobObject.containsKey("id")) {
+                id = jobObject.get("id");
+            }
+            result = compileToJson(parsePairs(jobObject.getJsonObject("files")));
+        }
+        catch (Throwable t) {
+            result = Json.createObjectBuilder()
+                .add("status", "Internal Error")
+                .add("errmsg", "Could not parse input: " + t);
+        }
+        return result.add("id", id).build();
+    }
+
+    private static String[][] parsePairs(JsonObject sourceFiles) {
+        String[][] pairs = new String[sourceFiles.size()][2];
+        int i = 0;
+        for (Map.Entry<String, JsonValue> pair : sourceFiles.entrySet()) {
+            pairs[i][0] = pair.getKey();
+            if (! (pair.getValue() instanceof JsonString)) {
+                throw new RuntimeException("For key " + pair.getKey() +
+                                           " value is a " +
+                                           pair.getKey().getClass()+":\n"+
+                                           pair.getKey().toString());
+            }
+            pairs[i][1] = ((JsonString)pair.getValue()).getString();
+            i++;
+        }
+        return pairs;
+    }
+
+    private static JsonObject internalError(String errmsg) {
+        return Json.createObjectBuilder()
+            .add("status", "Internal Error")
+            .add("errmsg", errmsg)
+            .build();
+    }
+
+    // compiles the files and describes the outcome, in the output format above
+    private static JsonObjectBuilder compileToJson(String[][] pairs) {
         CompileToBytes c2b = new CompileToBytes();
 
         c2b.compilerOutput = new StringWriter();
@@ -162,41 +343,28 @@ public class CompileToBytes {
                 .add("endpos", err.getEndPosition())
                 .build();
             if (err.getKind() == Diagnostic.Kind.ERROR) {
-                System.out.println(Json
-                                   .createObjectBuilder()
-                                   .add("status", "Compile-time Error")
-                                   .add("error", jerr)
-                                   .build());
-                return;
+                return Json.createObjectBuilder()
+                    .add("status", "Compile-time Error")
+                    .add("error", jerr);
             }
         }
 
         if (classMap == null && jerr == null) {
-            System.out.println(Json
-                               .createObjectBuilder()
-                               .add("status", "Internal Error")
-                               .add("errmsg", "Did not compile, but gave no errors!")
-                               .build());
-            return;
+            return Json.createObjectBuilder()
+                .add("status", "Internal Error")
+                .add("errmsg", "Did not compile, but gave no errors!");
         }
         
+        Base64.Encoder base64 = Base64.getEncoder();
         JsonObjectBuilder classFiles = Json.createObjectBuilder();
         for (Map.Entry<String, byte[]> pair : classMap.entrySet()) {
-            byte[] bytes = pair.getValue();
-            char[] hexEncoding = new char[bytes.length*2];
-            char[] hexArray = "0123456789ABCDEF".toCharArray();
-            for (int i = 0; i < bytes.length; i++) {
-                int v = bytes[i] & 0xFF;
-                hexEncoding[i*2] = hexArray[v >>> 4];
-                hexEncoding[i*2 + 1] = hexArray[v & 0x0F];
-            }
-            classFiles.add(pair.getKey(), new String(hexEncoding));
+            classFiles.add(pair.getKey(), base64.encodeToString(pair.getValue()));
         }
 
         JsonObjectBuilder job = Json.createObjectBuilder();
         job.add("status", "Success")
             .add("bytecodes", classFiles.build());
         if (jerr != null) job.add("warning", jerr);
-        System.out.println(job.build());
+        return job;
     }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package traceprinter.ramtools;
+
+import javax.tools.*;
+import java.util.*;
+
+/***
+ Keeps javac warm between compilations.
+
+ Creating a StandardJavaFileManager means indexing the platform classes
+ again, so instead of making one per compilation we keep the ones we have
+ made and hand them out again. A file manager is not thread-safe, so each
+ one is lent to a single compilation at a time; concurrent compilations
+ get one each, and every compilation still wraps it in its own
+ RAMClassFileManager, so their outputs never mix.
+
+ Also keeps count of how long compilations take.
+***/
+
+public class CompilerService {
+
+    private static CompilerService shared;
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+    private final ArrayDeque<StandardJavaFileManager> idle = new ArrayDeque<>();
+
+    private long compiles = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    /**
+     * @return The service shared by everything in this VM.
+     */
+    public static synchronized CompilerService shared() {
+        if (shared == null) {
+            shared = new CompilerService();
+        }
+        return shared;
+    }
+
+    public JavaCompiler getCompiler() {
+        return compiler;
+    }
+
+    /**
+     * Lends out a file manager; give it back with release() when done.
+     */
+    public StandardJavaFileManager borrowFileManager() {
+        synchronized (idle) {
+            if ( ! idle.isEmpty()) {
+                return idle.pop();
+            }
+        }
+        return compiler.getStandardFileManager(null, null, null);
+    }
+
+    public void release(StandardJavaFileManager fileManager) {
+        synchronized (idle) {
+            idle.push(fileManager);
+        }
+    }
+
+    /**
+     * Records how long one compilation took.
+     */
+    public synchronized void recordLatency(long nanos) {
+        compiles++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized long getCompileCount() {
+        return compiles;
+    }
+
+    public synchronized double getAverageMillis() {
+        return compiles == 0 ? 0 : totalNanos / 1e6 / compiles;
+    }
+
+    public synchronized double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+}
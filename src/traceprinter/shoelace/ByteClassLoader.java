@@ -1,4 +1,6 @@
 package traceprinter.shoelace;
+import java.io.*;
+import java.net.*;
 import java.util.*;
 
 /**
@@ -11,6 +13,11 @@ public class ByteClassLoader extends ClassLoader {
 
     private TreeMap<String, byte[]> definitions = new TreeMap<>();
 
+    // traceprinter.shoelace.Recorder is on no class path: only the classes
+    // rewritten for the "instrumented" strategy can see it, through here
+    static final String RECORDER = "traceprinter.shoelace.Recorder";
+    private ClassLoader recorderLoader = null;
+
     public ByteClassLoader() {
         instance = this;
     }
@@ -19,6 +26,44 @@ public class ByteClassLoader extends ClassLoader {
         definitions.put(className, bytecode);
     }
 
+    /**
+     * Defines every class packed into the given bytes.
+     *
+     * This lets traceprinter.VMCommander stage a whole submission with a
+     * single call. The format is an int count, followed by that many
+     * (UTF class name, int length, class file bytes) entries, and then
+     * the UTF URL of the recorder's directory, or "" if the classes
+     * weren't rewritten to use it.
+     */
+    public void defineAll(byte[] packed) throws IOException {
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(packed));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String className = in.readUTF();
+            byte[] bytecode = new byte[in.readInt()];
+            in.readFully(bytecode);
+            define(className, bytecode);
+        }
+        String recorderURL = in.readUTF();
+        if ( ! recorderURL.isEmpty()) {
+            recorderLoader = new URLClassLoader(new URL[] {new URL(recorderURL)},
+                                                getParent());
+        }
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve)
+            throws ClassNotFoundException {
+        if (name.equals(RECORDER)) {
+            if (recorderLoader == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return recorderLoader.loadClass(name);
+        }
+        return super.loadClass(name, resolve);
+    }
+
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
         byte[] bytecode = definitions.get(name);
@@ -0,0 +1,1378 @@
+package traceprinter.shoelace;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.*;
+
+/**
+ * Records the trace of the user's code from inside the debuggee, for the
+ * "instrumented" tracing strategy.
+ *
+ * traceprinter.Instrumenter rewrites the user's classes to call the hooks
+ * below wherever the "breakpoints" strategy would stop the debuggee.
+ * Instead of stopping, the recorder keeps a shadow of the user's stack and
+ * writes each execution point as a line of JSON into a buffer, the way
+ * JDI2JSON would have shown it (except for stdout and the frame ids,
+ * which the debugger adds). Now and then the buffer is handed to the
+ * debugger, which has a breakpoint in drained().
+ *
+ * Whatever it can't show the way JDI would (other threads, frames it
+ * didn't see being entered, ...) makes the recorder give up by calling
+ * failed(); the debugger then traces the program again with breakpoints.
+ *
+ * Note that the debugger and the user's code run in different JVMs; the
+ * fields below marked as such are read and written with JDI.
+ */
+public final class Recorder {
+    /* set by the debugger, while it is stopped in ready() */
+
+    // Instrumenter.config(), and an "O" line with the options
+    static String config;
+    // the steps of the trace so far
+    static int steps;
+    // the user's classes prepared so far, in order
+    static Class<?>[] prepared = new Class<?>[1024];
+    static int preparedCount = 0;
+
+    /* set by the debugger whenever it shows a step of its own */
+
+    // the stack may have changed without the hooks seeing it
+    static boolean resync = false;
+    // the last record, to leave out steps where nothing changed
+    static String lastRecord = null;
+
+    /* read by the debugger */
+
+    // the records not drained yet, one per line
+    static char[] buffer = new char[1 << 16];
+    static int length = 0;
+    // the records being drained, while in drained()
+    static String drainedText = null;
+    // why the recorder gave up, or null
+    static String failure = null;
+    // the value the next step shows as its last_return_value
+    static boolean hasReturned = false;
+    static Object returned = null;
+    static char returnedKind;
+
+    /* shared with the debugger, which gives ids to the objects its own
+       steps show */
+
+    // the objects shown so far, by id (in place of JDI's uniqueID()).
+    // They are kept for the whole run, which only lasts as long as the
+    // trace.
+    static Object[] idTable = new Object[1024];
+    static int nextId = 1;
+
+    // records are drained once the buffer holds this many chars
+    private static final int DRAIN_LENGTH = 1 << 20;
+
+    private static final String RECORDER = Recorder.class.getName();
+    private static final String[] BUILTIN_PACKAGES =
+        {"java.", "javax.", "sun.", "com.sun.", "jdk.", "traceprinter."};
+
+    private static Counting out, err;
+    private static PrintStream outStream, errStream;
+    private static Thread thread;
+
+    private static int maxSteps, maxStackSize, maxArrayLength, arrayWindow;
+    private static boolean showStringsAsValues;
+
+    /* what the Instrumenter found out; see Instrumenter.config() */
+
+    private static Set<String> userClasses = new HashSet<>();
+    private static List<MethodInfo> methods = new ArrayList<>();
+    private static List<Layout> layouts = new ArrayList<>();
+    private static List<Site> sites = new ArrayList<>();
+
+    private static class MethodInfo {
+        String className, name, nameAndDesc, funcName, file;
+        boolean isStatic, isConstructor, isStaticInitializer, isAccessor;
+        // JDK code might call it (see Instrumenter.mayBeCalledBack)
+        boolean mayBeCalledBack;
+        char returnKind;
+    }
+
+    private static class Layout {
+        // the kind of each captured value
+        char[] kinds;
+        // per entry: A, P, E or V, the name shown and the captured value
+        char[] roles;
+        String[] names;
+        int[] captures;
+        // the V entries, in the order of "ordered_varnames"
+        int[] order;
+        // the captured values that may be array indices
+        int[] indices;
+    }
+
+    private static class Site {
+        MethodInfo method;
+        int line;
+        Layout layout;
+        // the name and descriptor of the method called there, or ""
+        String callee;
+        boolean userOwner, staticCall, superCall;
+    }
+
+    /* the shadow stack */
+
+    private static class Frame {
+        MethodInfo method;
+        // "this", or a Placeholder until super(...) has returned
+        Object self;
+        // where the frame is, and the values of its locals there; null
+        // until the first hook after entering it
+        Site site;
+        Object[] values;
+        // the object the <init> it is about to call initializes
+        Object nextThis;
+        // the name of the JDK frame right above this one, if any
+        String stub;
+    }
+
+    private static Frame[] stack = new Frame[64];
+    private static int depth = 0;
+
+    /**
+     * Stands for an object whose constructor hasn't called super(...)
+     * yet, which can't be handed to the hooks.
+     */
+    private static class Placeholder {
+        final Class<?> type;
+        Object target = null;
+
+        Placeholder(Class<?> type) {
+            this.type = type;
+        }
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message);
+        }
+    }
+
+    static {
+        try {
+            thread = Thread.currentThread();
+            privileged(new PrivilegedAction<Void>() {
+                @Override
+                public Void run() {
+                    Memory.init();
+                    // count the bytes that reach the pipes, so that the
+                    // debugger knows how much output each step has seen
+                    System.out.flush();
+                    System.err.flush();
+                    out = new Counting(new FileOutputStream(FileDescriptor.out));
+                    err = new Counting(new FileOutputStream(FileDescriptor.err));
+                    outStream = new PrintStream(new BufferedOutputStream(out, 128), true);
+                    errStream = new PrintStream(new BufferedOutputStream(err, 128), true);
+                    System.setOut(outStream);
+                    System.setErr(errStream);
+                    return null;
+                }
+            });
+            ready();
+            readConfig(config);
+            config = null;
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Runs the action with the recorder's permissions (see
+     * src/user_code.policy) rather than those of the user's code that
+     * called the hook.
+     */
+    // the debuggee still runs under a security manager, deprecated or not
+    @SuppressWarnings("removal")
+    private static <T> T privileged(PrivilegedAction<T> action) {
+        return AccessController.doPrivileged(action);
+    }
+
+    /* breakpoints of the debugger */
+
+    /**
+     * Called once the recorder is loaded, for the debugger to hand over
+     * the config.
+     */
+    static void ready() {
+    }
+
+    /**
+     * Called with the records in drainedText.
+     */
+    static void drained() {
+    }
+
+    /**
+     * Called once, with the reason in failure.
+     */
+    static void failed() {
+    }
+
+    private static void readConfig(String text) {
+        for (String line : text.split("\n")) {
+            String[] f = line.split("\t", -1);
+            switch (f[0]) {
+            case "C":
+                userClasses.add(f[1]);
+                break;
+            case "M": {
+                MethodInfo m = new MethodInfo();
+                m.isStatic = f[2].indexOf('s') >= 0;
+                m.isConstructor = f[2].indexOf('c') >= 0;
+                m.isStaticInitializer = f[2].indexOf('i') >= 0;
+                m.isAccessor = f[2].indexOf('a') >= 0;
+                m.mayBeCalledBack = f[2].indexOf('b') >= 0;
+                m.className = f[3];
+                m.name = f[4];
+                m.nameAndDesc = f[4] + f[5];
+                m.funcName = f[6];
+                m.file = f[7];
+                m.returnKind = f[8].charAt(0);
+                add(methods, Integer.parseInt(f[1]), m);
+                break;
+            }
+            case "L": {
+                Layout l = new Layout();
+                l.kinds = f[2].toCharArray();
+                String[] entries = f[3].isEmpty() ? new String[0] : f[3].split(";");
+                l.roles = new char[entries.length];
+                l.names = new String[entries.length];
+                l.captures = new int[entries.length];
+                for (int i = 0; i < entries.length; i++) {
+                    String[] e = entries[i].split(",");
+                    l.roles[i] = e[0].charAt(0);
+                    l.captures[i] = Integer.parseInt(e[1]);
+                    l.names[i] = e[2];
+                }
+                l.order = ints(f[4]);
+                l.indices = ints(f[5]);
+                add(layouts, Integer.parseInt(f[1]), l);
+                break;
+            }
+            case "S": {
+                Site s = new Site();
+                s.method = methods.get(Integer.parseInt(f[2]));
+                s.line = Integer.parseInt(f[3]);
+                s.layout = layouts.get(Integer.parseInt(f[4]));
+                s.callee = f[5];
+                s.userOwner = f[6].indexOf('u') >= 0;
+                s.staticCall = f[6].indexOf('s') >= 0;
+                s.superCall = f[6].indexOf('t') >= 0;
+                add(sites, Integer.parseInt(f[1]), s);
+                break;
+            }
+            case "O":
+                maxSteps = Integer.parseInt(f[1]);
+                maxStackSize = Integer.parseInt(f[2]);
+                maxArrayLength = Integer.parseInt(f[3]);
+                arrayWindow = Integer.parseInt(f[4]);
+                showStringsAsValues = Boolean.parseBoolean(f[5]);
+                break;
+            default:
+                throw new Unsupported("bad config line " + line);
+            }
+        }
+    }
+
+    private static <T> void add(List<T> list, int id, T item) {
+        if (id != list.size()) {
+            throw new Unsupported("config entries out of order");
+        }
+        list.add(item);
+    }
+
+    private static int[] ints(String text) {
+        if (text.isEmpty()) return new int[0];
+        String[] parts = text.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i]);
+        }
+        return result;
+    }
+
+    /* the hooks */
+
+    /**
+     * At the start of each method of the user's code.
+     *
+     * @param self "this", except in constructors, where it can't be used
+     * yet.
+     */
+    public static void enter(int method, Object self) {
+        if (failure != null) return;
+        try {
+            checkThread();
+            MethodInfo m = methods.get(method);
+            Frame caller = depth == 0 ? null : stack[depth - 1];
+            boolean direct = false;
+            if (caller != null && ! resync && caller.site != null &&
+                caller.site.callee.equals(m.nameAndDesc)) {
+                Site s = caller.site;
+                // a virtual call may end up in JDK code that calls us back
+                direct = s.userOwner && (s.staticCall || ! m.mayBeCalledBack);
+            }
+            if (direct) {
+                caller.stub = null;
+            } else {
+                walk(m);
+                caller = depth == 0 ? null : stack[depth - 1];
+            }
+
+            Frame f = push(m);
+            if (m.isConstructor) {
+                if (caller == null || caller.nextThis == null) {
+                    throw new Unsupported(m.className + " constructed by JDK code");
+                }
+                f.self = caller.nextThis;
+                caller.nextThis = null;
+            } else {
+                f.self = self;
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * At the start of each line.
+     */
+    public static void line(int site, Object[] values) {
+        if (failure != null) return;
+        try {
+            Frame f = at(site, values);
+            record("step_line", f, false, null);
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Before each return.
+     *
+     * @param value The value returned, boxed; null for void methods.
+     */
+    public static void exit(Object value, int site, Object[] values) {
+        if (failure != null) return;
+        try {
+            Frame f = at(site, values);
+            MethodInfo m = f.method;
+            // JDI2JSON doesn't show these returns either
+            if ( ! m.isStaticInitializer && ! m.isAccessor) {
+                record("return", f, true, value);
+                if (m.isConstructor) {
+                    setReturned(resolve(f.self), 'L');
+                } else if (m.returnKind == 'V') {
+                    hasReturned = false;
+                    returned = null;
+                } else {
+                    setReturned(value, m.returnKind);
+                }
+            }
+            pop();
+            if (depth == 0) {
+                drain();
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Before each call (and each other instruction) that might run more
+     * of the user's code.
+     */
+    public static void call(int site, Object[] values) {
+        if (failure != null) return;
+        try {
+            Frame f = at(site, values);
+            if (f.site.superCall) {
+                f.nextThis = f.self;
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Before the constructor call of a "new" of a user class.
+     */
+    public static void construct(Class<?> type, int site, Object[] values) {
+        if (failure != null) return;
+        try {
+            Frame f = at(site, values);
+            f.nextThis = new Placeholder(type);
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * In a constructor, once super(...) or this(...) has returned.
+     */
+    public static void initialized(Object self) {
+        if (failure != null) return;
+        try {
+            checkThread();
+            Frame f = stack[depth - 1];
+            if (f.self instanceof Placeholder) {
+                Placeholder p = (Placeholder)f.self;
+                if (p.target == null) {
+                    p.target = self;
+                    Integer id = ids.remove(p);
+                    if (id != null) {
+                        ids.put(self, id);
+                        idTable[id] = self;
+                    }
+                }
+            }
+            f.self = self;
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * At the start of each exception handler. The frames the exception
+     * went through were left without calling exit.
+     */
+    public static void caught(Throwable exception, int method) {
+        if (failure != null) return;
+        try {
+            checkThread();
+            walk(null);
+            if (depth == 0 || stack[depth - 1].method != methods.get(method)) {
+                throw new Unsupported("lost track of an exception");
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Before System.exit(...) and the like.
+     */
+    public static void flush() {
+        if (failure != null) return;
+        try {
+            drain();
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    private static void checkThread() {
+        if (Thread.currentThread() != thread) {
+            throw new Unsupported("user code run by more than one thread");
+        }
+    }
+
+    /**
+     * @return The frame at the site, which is now where it is.
+     */
+    private static Frame at(int site, Object[] values) {
+        checkThread();
+        Site s = sites.get(site);
+        if (resync || depth == 0 || stack[depth - 1].method != s.method) {
+            walk(null);
+        }
+        if (depth == 0 || stack[depth - 1].method != s.method) {
+            throw new Unsupported("lost track of " + s.method.name);
+        }
+        Frame f = stack[depth - 1];
+        f.site = s;
+        f.values = values;
+        return f;
+    }
+
+    private static Frame push(MethodInfo m) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        Frame f = new Frame();
+        f.method = m;
+        stack[depth++] = f;
+        return f;
+    }
+
+    private static void pop() {
+        stack[--depth] = null;
+    }
+
+    /**
+     * Brings the shadow stack in line with the real one, which can only
+     * have lost frames (to exceptions), and finds the JDK frames between
+     * the user's frames.
+     *
+     * @param entering The method being entered, whose frame is on the
+     * real stack but not yet on the shadow stack; or null.
+     */
+    private static void walk(MethodInfo entering) {
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+        List<StackTraceElement> frames = new ArrayList<>();
+        List<String> stubs = new ArrayList<>();
+        StackTraceElement above = null;
+        int i = 0;
+        while (i < trace.length && trace[i].getClassName().startsWith(RECORDER)) {
+            i++;
+        }
+        for (; i < trace.length; i++) {
+            String className = trace[i].getClassName();
+            if (userClasses.contains(className)) {
+                frames.add(trace[i]);
+                stubs.add(above == null ? null : stubName(above));
+                above = null;
+            } else if (isBuiltin(className)) {
+                above = trace[i];
+            } else {
+                throw new Unsupported("code that wasn't rewritten: " + className);
+            }
+        }
+
+        int skip = entering == null ? 0 : 1;
+        if (entering != null &&
+            ( frames.isEmpty() || ! sameMethod(entering, frames.get(0)))) {
+            throw new Unsupported("lost track of " + entering.name);
+        }
+        int real = frames.size() - skip;
+        if (real > depth) {
+            throw new Unsupported("frames entered without the recorder");
+        }
+        while (depth > real) {
+            pop();
+        }
+        for (int k = 0; k < real; k++) {
+            Frame f = stack[real - 1 - k];
+            if ( ! sameMethod(f.method, frames.get(skip + k))) {
+                throw new Unsupported("lost track of " + f.method.name);
+            }
+            f.stub = stubs.get(skip + k);
+        }
+        if (real > 0 && entering == null) {
+            // the frame at the top has nothing above it
+            stack[real - 1].stub = null;
+        }
+        resync = false;
+    }
+
+    private static boolean sameMethod(MethodInfo m, StackTraceElement e) {
+        return m.className.equals(e.getClassName()) && m.name.equals(e.getMethodName());
+    }
+
+    private static boolean isBuiltin(String className) {
+        for (String prefix : BUILTIN_PACKAGES) {
+            if (className.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    // like JDI2JSON.convertFrameStub
+    private static String stubName(StackTraceElement e) {
+        String className = e.getClassName();
+        String name = e.getMethodName().equals("<init>")
+            ? className : e.getMethodName();
+        return "\u22EE\n" + className + "." + name;
+    }
+
+    private static Object resolve(Object o) {
+        if (o instanceof Placeholder && ((Placeholder)o).target != null) {
+            return ((Placeholder)o).target;
+        }
+        return o;
+    }
+
+    private static void setReturned(Object value, char kind) {
+        hasReturned = true;
+        returned = value;
+        returnedKind = kind;
+    }
+
+    private static void fail(Throwable t) {
+        fail(t instanceof Unsupported ? t.getMessage() : t.toString());
+    }
+
+    private static void fail(String reason) {
+        if (failure != null) return;
+        failure = reason;
+        failed();
+    }
+
+    /* the records */
+
+    // the JSON being written
+    private static StringBuilder json = new StringBuilder();
+
+    // idTable, the other way around, up to idsKnown
+    private static Map<Object, Integer> ids = new IdentityHashMap<>();
+    private static int idsKnown = 1;
+
+    // the objects referred to in the record, but not shown yet
+    private static TreeMap<Integer, Object> heap = new TreeMap<>();
+    private static BitSet heapDone = new BitSet();
+    // see JDI2JSON.getIndexCandidates; null until needed
+    private static TreeSet<Long> indexCandidates;
+
+    /**
+     * Writes a record of the execution point, like
+     * JDI2JSON.convertExecutionPoint, unless nothing changed.
+     */
+    private static void record(String event, Frame top, boolean isReturn, Object value) {
+        if (System.out != outStream || System.err != errStream) {
+            throw new Unsupported("System.out or System.err replaced");
+        }
+        while (idsKnown < nextId) {
+            ids.put(idTable[idsKnown], idsKnown);
+            idsKnown++;
+        }
+        json.setLength(0);
+        heap.clear();
+        indexCandidates = null;
+        MethodInfo m = top.method;
+
+        json.append("{\"out\":").append(out.count)
+            .append(",\"err\":").append(err.count);
+        if (hasReturned) {
+            json.append(",\"last_return_value\":");
+            value(returned, returnedKind);
+            hasReturned = false;
+            returned = null;
+        }
+        json.append(",\"event\":\"").append(event).append('"');
+        json.append(",\"line\":").append(top.site.line);
+        json.append(",\"file\":");
+        string(m.file);
+
+        json.append(",\"stack_to_render\":[");
+        int frames = 0;
+        for (int k = depth - 1; k >= 0; k--) {
+            Frame f = stack[k];
+            if (f.site == null) {
+                throw new Unsupported("no locals for " + f.method.name);
+            }
+            if (k < depth - 1 && f.stub != null) {
+                if (frames > 0) json.append(',');
+                json.append("{\"func_name\":");
+                string(f.stub);
+                json.append(",\"encoded_locals\":{},\"ordered_varnames\":[]," +
+                            "\"parent_frame_id_list\":[],\"is_highlighted\":false," +
+                            "\"is_zombie\":false,\"is_parent\":false}");
+                frames++;
+            }
+            if (frames > 0) json.append(',');
+            frame(f, k == depth - 1, isReturn && k == depth - 1, value);
+            frames++;
+        }
+        json.append(']');
+
+        Class<?> stdIn = preparedClass("StdIn");
+        if (stdIn != null && ! Memory.shouldBeInitialized(stdIn)) {
+            try {
+                Field position = stdIn.getDeclaredField("position");
+                json.append(",\"stdinPosition\":").append(
+                    Memory.read(Memory.staticFieldBase(position),
+                                Memory.staticFieldOffset(position), 'I'));
+            } catch (NoSuchFieldException e) {
+                throw new Unsupported("StdIn without a position");
+            }
+        }
+
+        globals();
+        json.append(",\"func_name\":");
+        string(m.funcName);
+        heap();
+        json.append('}');
+
+        String record = json.toString();
+        if (record.equals(lastRecord)) {
+            return;
+        }
+        lastRecord = record;
+        append(record);
+        steps++;
+        if (steps >= maxSteps || frames >= maxStackSize || length >= DRAIN_LENGTH) {
+            drain();
+        }
+    }
+
+    // like JDI2JSON.convertFrame
+    private static void frame(Frame f, boolean highlight, boolean isReturn, Object value) {
+        Layout layout = f.site.layout;
+        MethodInfo m = f.method;
+        List<String> ordered = new ArrayList<>();
+
+        json.append("{\"func_name\":");
+        string(m.funcName + ":" + f.site.line);
+        json.append(",\"encoded_locals\":{");
+        boolean first = true;
+        if ( ! m.isStatic) {
+            json.append("\"this\":");
+            value(f.self, 'L');
+            ordered.add("this");
+            first = false;
+        }
+        for (int i = 0; i < layout.names.length; i++) {
+            if (layout.roles[i] == 'E') {
+                // JDI2JSON's placeholder for arguments it can't read
+                if ( ! first) json.append(',');
+                first = false;
+                json.append("\"&hellip;?\":[\"NUMBER-LITERAL\",\"&hellip;?\"]");
+                ordered.add("&hellip;?");
+                continue;
+            }
+            Object v = f.values[layout.captures[i]];
+            char kind = layout.kinds[layout.captures[i]];
+            if (layout.roles[i] == 'A' && layout.names[i].equals("args") &&
+                v != null && v.getClass().isArray() && Array.getLength(v) == 0) {
+                continue;
+            }
+            if ( ! first) json.append(',');
+            first = false;
+            string(layout.names[i]);
+            json.append(':');
+            value(v, kind);
+            if (layout.roles[i] != 'V') {
+                ordered.add(layout.names[i]);
+            }
+        }
+        for (int i : layout.order) {
+            ordered.add(layout.names[i]);
+        }
+        if (isReturn) {
+            if ( ! first) json.append(',');
+            json.append("\"__return__\":");
+            value(value, m.isConstructor ? 'V' : m.returnKind);
+            ordered.add("__return__");
+        }
+        json.append("},\"ordered_varnames\":[");
+        for (int i = 0; i < ordered.size(); i++) {
+            if (i > 0) json.append(',');
+            string(ordered.get(i));
+        }
+        json.append("],\"parent_frame_id_list\":[],\"is_highlighted\":")
+            .append(highlight)
+            .append(",\"is_zombie\":false,\"is_parent\":false}");
+    }
+
+    // like JDI2JSON.addGlobalFieldsToJson
+    private static void globals() {
+        List<String> names = new ArrayList<>();
+        json.append(",\"globals\":{");
+        for (int i = 0; i < preparedCount; i++) {
+            TypeInfo info = typeInfo(prepared[i]);
+            for (int j = 0; j < info.staticNames.length; j++) {
+                if ( ! names.isEmpty()) json.append(',');
+                string(info.staticNames[j]);
+                json.append(':');
+                value(Memory.read(info.staticBases[j], info.staticOffsets[j],
+                                  info.staticKinds[j]),
+                      info.staticKinds[j]);
+                names.add(info.staticNames[j]);
+            }
+        }
+        json.append("},\"ordered_globals\":[");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) json.append(',');
+            string(names.get(i));
+        }
+        json.append(']');
+    }
+
+    private static Class<?> preparedClass(String name) {
+        for (int i = 0; i < preparedCount; i++) {
+            if (prepared[i].getName().equals(name)) return prepared[i];
+        }
+        return null;
+    }
+
+    // like JDI2JSON.convertValue
+    private static void value(Object v, char kind) {
+        switch (kind) {
+        case 'Z':
+            json.append(((Boolean)v).booleanValue());
+            return;
+        case 'B':
+        case 'S':
+        case 'I':
+            json.append(((Number)v).intValue());
+            return;
+        case 'J':
+        case 'F':
+        case 'D':
+            json.append("[\"NUMBER-LITERAL\",");
+            string(String.valueOf(v));
+            json.append(']');
+            return;
+        case 'C':
+            json.append("[\"CHAR-LITERAL\",");
+            string(String.valueOf(v));
+            json.append(']');
+            return;
+        case 'V':
+            json.append("[\"VOID\"]");
+            return;
+        }
+        Object o = resolve(v);
+        if (o == null) {
+            json.append("null");
+        } else if (showStringsAsValues && o instanceof String) {
+            string((String)o);
+        } else {
+            Integer id = ids.get(o);
+            if (id == null) {
+                id = newId(o);
+            }
+            heap.put(id, o);
+            char wrapperKind = showStringsAsValues ? wrapperKind(o) : 0;
+            if (wrapperKind != 0) {
+                value(o, wrapperKind);
+            } else {
+                json.append("[\"REF\",").append(id).append(']');
+            }
+        }
+    }
+
+    private static int newId(Object o) {
+        if (nextId == idTable.length) {
+            idTable = Arrays.copyOf(idTable, nextId * 2);
+        }
+        idTable[nextId] = o;
+        ids.put(o, nextId);
+        idsKnown = nextId + 1;
+        return nextId++;
+    }
+
+    private static char wrapperKind(Object o) {
+        if (o instanceof Placeholder || o.getClass().isArray()) return 0;
+        return typeInfo(o.getClass()).wrapperKind;
+    }
+
+    // like JDI2JSON.convertHeap
+    private static void heap() {
+        json.append(",\"heap\":{");
+        heapDone.clear();
+        boolean first = true;
+        while ( ! heap.isEmpty()) {
+            Map.Entry<Integer, Object> e = heap.pollFirstEntry();
+            int id = e.getKey();
+            if (heapDone.get(id)) continue;
+            heapDone.set(id);
+            if ( ! first) json.append(',');
+            first = false;
+            json.append('"').append(id).append("\":");
+            object(e.getValue());
+        }
+        json.append('}');
+    }
+
+    // like JDI2JSON.convertObject, for the full version
+    private static void object(Object o) {
+        char wrapperKind = showStringsAsValues ? wrapperKind(o) : 0;
+        if (wrapperKind != 0) {
+            value(o, wrapperKind);
+            return;
+        }
+        if (o.getClass().isArray()) {
+            array(o);
+            return;
+        }
+        if (o instanceof String) {
+            json.append("[\"HEAP_PRIMITIVE\",\"String\",");
+            string((String)o);
+            json.append(']');
+            return;
+        }
+
+        boolean placeholder = o instanceof Placeholder;
+        TypeInfo info = typeInfo(placeholder ? ((Placeholder)o).type : o.getClass());
+        json.append("[\"INSTANCE\",");
+        string(info.displayName);
+        if (info.wrapperKind != 0) {
+            json.append(",[\"___NO_LABEL!___\",");
+            value(o, info.wrapperKind);
+            json.append(']');
+        }
+        if (info.showGuts) {
+            for (int i = 0; i < info.fieldNames.length; i++) {
+                json.append(",[");
+                string(info.fieldNames[i]);
+                json.append(',');
+                char kind = info.fieldKinds[i];
+                // nothing is set before super(...) returns
+                value(placeholder ? defaultValue(kind)
+                      : Memory.read(o, info.fieldOffsets[i], kind),
+                      kind);
+                json.append(']');
+            }
+        }
+        json.append(']');
+    }
+
+    /**
+     * Reads fields the way JDI does, with sun.misc.Unsafe.
+     *
+     * Reflection won't do: reading a static field with it initializes the
+     * class, which JDI never does (and the globals show every prepared
+     * class, initialized or not), and it can't read the private fields a
+     * user class inherits from the JDK. Unsafe is only looked up
+     * reflectively, so that traceprinter doesn't compile against (and
+     * warn about) an internal API; this is the only place that uses it.
+     * init() needs the recorder's permissions.
+     */
+    private static final class Memory {
+        private static final Object UNSAFE = theUnsafe();
+
+        private static final MethodHandle SHOULD_BE_INITIALIZED =
+            find("shouldBeInitialized", boolean.class, Class.class);
+        private static final MethodHandle STATIC_FIELD_BASE =
+            find("staticFieldBase", Object.class, Field.class);
+        private static final MethodHandle STATIC_FIELD_OFFSET =
+            find("staticFieldOffset", long.class, Field.class);
+        private static final MethodHandle OBJECT_FIELD_OFFSET =
+            find("objectFieldOffset", long.class, Field.class);
+
+        private static final MethodHandle GET_BOOLEAN = getter("getBoolean", boolean.class);
+        private static final MethodHandle GET_BYTE = getter("getByte", byte.class);
+        private static final MethodHandle GET_CHAR = getter("getChar", char.class);
+        private static final MethodHandle GET_SHORT = getter("getShort", short.class);
+        private static final MethodHandle GET_INT = getter("getInt", int.class);
+        private static final MethodHandle GET_LONG = getter("getLong", long.class);
+        private static final MethodHandle GET_FLOAT = getter("getFloat", float.class);
+        private static final MethodHandle GET_DOUBLE = getter("getDouble", double.class);
+        private static final MethodHandle GET_OBJECT = getter("getObject", Object.class);
+
+        /**
+         * Looks everything up, while the caller has the permissions to.
+         */
+        static void init() {
+        }
+
+        private static Object theUnsafe() {
+            try {
+                Field f = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                return f.get(null);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static MethodHandle find(String name, Class<?> returnType,
+                                         Class<?>... parameterTypes) {
+            try {
+                return MethodHandles.lookup()
+                    .findVirtual(UNSAFE.getClass(), name,
+                                 MethodType.methodType(returnType, parameterTypes))
+                    .bindTo(UNSAFE);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static MethodHandle getter(String name, Class<?> type) {
+            return find(name, type, Object.class, long.class);
+        }
+
+        static boolean shouldBeInitialized(Class<?> type) {
+            try {
+                return (boolean)SHOULD_BE_INITIALIZED.invokeExact(type);
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        static Object staticFieldBase(Field f) {
+            try {
+                return (Object)STATIC_FIELD_BASE.invokeExact(f);
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        static long staticFieldOffset(Field f) {
+            try {
+                return (long)STATIC_FIELD_OFFSET.invokeExact(f);
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        static long objectFieldOffset(Field f) {
+            try {
+                return (long)OBJECT_FIELD_OFFSET.invokeExact(f);
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        static Object read(Object base, long offset, char kind) {
+            try {
+                switch (kind) {
+                case 'Z': return (boolean)GET_BOOLEAN.invokeExact(base, offset);
+                case 'B': return (byte)GET_BYTE.invokeExact(base, offset);
+                case 'C': return (char)GET_CHAR.invokeExact(base, offset);
+                case 'S': return (short)GET_SHORT.invokeExact(base, offset);
+                case 'I': return (int)GET_INT.invokeExact(base, offset);
+                case 'J': return (long)GET_LONG.invokeExact(base, offset);
+                case 'F': return (float)GET_FLOAT.invokeExact(base, offset);
+                case 'D': return (double)GET_DOUBLE.invokeExact(base, offset);
+                default: return (Object)GET_OBJECT.invokeExact(base, offset);
+                }
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    private static Object defaultValue(char kind) {
+        switch (kind) {
+        case 'Z': return false;
+        case 'B': return (byte)0;
+        case 'C': return (char)0;
+        case 'S': return (short)0;
+        case 'I': return 0;
+        case 'J': return 0L;
+        case 'F': return 0f;
+        case 'D': return 0d;
+        default: return null;
+        }
+    }
+
+    // like JDI2JSON.convertArray
+    private static void array(Object a) {
+        int length = Array.getLength(a);
+        char kind = kind(a.getClass().getComponentType());
+        json.append("[\"LIST\"");
+        if (maxArrayLength > 0 && length > maxArrayLength) {
+            addArrayWindows(a, kind, length);
+        } else {
+            addArrayElements(a, kind, 0, length);
+        }
+        json.append(']');
+    }
+
+    private static void addArrayElements(Object a, char kind, int from, int to) {
+        Object runValue = null;
+        int runLength = 0;
+        for (int i = from; i < to; i++) {
+            Object v = kind == 'L' ? ((Object[])a)[i] : Array.get(a, i);
+            if (runLength > 0 && isRepeatOf(runValue, v, kind)) {
+                runLength++;
+                continue;
+            }
+            addRun(runValue, kind, runLength);
+            runValue = v;
+            runLength = 1;
+        }
+        addRun(runValue, kind, runLength);
+    }
+
+    private static void addArrayWindows(Object a, char kind, int length) {
+        int window = Math.max(1, arrayWindow);
+        List<int[]> ranges = new ArrayList<>();
+        ranges.add(new int[] {0, Math.min(window, length)});
+        ranges.add(new int[] {Math.max(0, length - window), length});
+        for (long i : getIndexCandidates()) {
+            if (i >= 0 && i < length) {
+                ranges.add(new int[] {(int)Math.max(0, i - window / 2),
+                                      (int)Math.min(length, i + window / 2 + 1)});
+            }
+        }
+        Collections.sort(ranges, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] x, int[] y) {
+                return Integer.compare(x[0], y[0]);
+            }
+        });
+
+        int shown = 0;
+        for (int[] range : ranges) {
+            int from = Math.max(range[0], shown);
+            if (range[1] <= from) continue;
+            if (from > shown) {
+                elide(from - shown, shown, length);
+            }
+            addArrayElements(a, kind, from, range[1]);
+            shown = range[1];
+        }
+        if (shown < length) {
+            elide(length - shown, shown, length);
+        }
+    }
+
+    private static void elide(int count, int start, int length) {
+        json.append(",[\"ELIDE\",").append(count).append(',').append(start)
+            .append(',').append(length).append(']');
+    }
+
+    private static Set<Long> getIndexCandidates() {
+        if (indexCandidates == null) {
+            indexCandidates = new TreeSet<>();
+            for (int k = 0; k < depth; k++) {
+                Frame f = stack[k];
+                for (int c : f.site.layout.indices) {
+                    indexCandidates.add(((Number)f.values[c]).longValue());
+                }
+            }
+        }
+        return indexCandidates;
+    }
+
+    private static void addRun(Object v, char kind, int n) {
+        if (n == 0) return;
+        if (n >= 4) {
+            json.append(',');
+            value(v, kind);
+            json.append(",[\"ELIDE\",").append(n - 2).append(']');
+            json.append(',');
+            value(v, kind);
+        } else {
+            for (int i = 0; i < n; i++) {
+                json.append(',');
+                value(v, kind);
+            }
+        }
+    }
+
+    // like JDI2JSON.isRepeatOf: primitives by ==, and nulls
+    private static boolean isRepeatOf(Object v, Object w, char kind) {
+        switch (kind) {
+        case 'L': return v == null && w == null;
+        case 'F': return ((Float)v).floatValue() == ((Float)w).floatValue();
+        case 'D': return ((Double)v).doubleValue() == ((Double)w).doubleValue();
+        default: return v.equals(w);
+        }
+    }
+
+    private static char kind(Class<?> type) {
+        if ( ! type.isPrimitive()) return 'L';
+        if (type == boolean.class) return 'Z';
+        if (type == long.class) return 'J';
+        return Character.toUpperCase(type.getName().charAt(0));
+    }
+
+    private static void string(String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int)c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /* what is shown of each type */
+
+    private static class TypeInfo {
+        String displayName;
+        // the kind of the value, for java.lang wrapper types
+        char wrapperKind = 0;
+        boolean showGuts;
+        String[] fieldNames;
+        long[] fieldOffsets;
+        char[] fieldKinds;
+        // the declared static fields, for the globals
+        String[] staticNames;
+        Object[] staticBases;
+        long[] staticOffsets;
+        char[] staticKinds;
+    }
+
+    private static Map<Class<?>, TypeInfo> typeInfos = new HashMap<>();
+
+    private static TypeInfo typeInfo(final Class<?> type) {
+        TypeInfo info = typeInfos.get(type);
+        if (info == null) {
+            info = privileged(new PrivilegedAction<TypeInfo>() {
+                @Override
+                public TypeInfo run() {
+                    return newTypeInfo(type);
+                }
+            });
+            typeInfos.put(type, info);
+        }
+        return info;
+    }
+
+    // like JDI2JSON.TypeInfo
+    private static TypeInfo newTypeInfo(Class<?> type) {
+        TypeInfo info = new TypeInfo();
+        String name = type.getName();
+        if (name.startsWith("java.lang.") && ! name.substring(10).contains(".")) {
+            Class<?> primitive = primitiveOf(type);
+            if (primitive != null) {
+                info.wrapperKind = kind(primitive);
+            }
+        }
+        info.displayName = info.wrapperKind != 0 ? name.substring(10) : displayName(type);
+        info.showGuts = name.matches("(^|\\.)Point") || ! isBuiltin(name);
+
+        List<Field> fields = new ArrayList<>();
+        for (Field f : visibleFields(type)) {
+            if ( ! Modifier.isStatic(f.getModifiers()) && ! f.isSynthetic()) {
+                fields.add(f);
+            }
+        }
+        info.fieldNames = new String[fields.size()];
+        info.fieldOffsets = new long[fields.size()];
+        info.fieldKinds = new char[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            Field f = fields.get(i);
+            info.fieldNames[i] = f.getName();
+            info.fieldOffsets[i] = Memory.objectFieldOffset(f);
+            info.fieldKinds[i] = kind(f.getType());
+        }
+
+        List<Field> statics = new ArrayList<>();
+        for (Field f : type.getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers())) {
+                statics.add(f);
+            }
+        }
+        info.staticNames = new String[statics.size()];
+        info.staticBases = new Object[statics.size()];
+        info.staticOffsets = new long[statics.size()];
+        info.staticKinds = new char[statics.size()];
+        for (int i = 0; i < statics.size(); i++) {
+            Field f = statics.get(i);
+            info.staticNames[i] = name + "." + f.getName();
+            info.staticBases[i] = Memory.staticFieldBase(f);
+            info.staticOffsets[i] = Memory.staticFieldOffset(f);
+            info.staticKinds[i] = kind(f.getType());
+        }
+        return info;
+    }
+
+    private static Class<?> primitiveOf(Class<?> wrapper) {
+        Class<?>[] wrappers = {Boolean.class, Byte.class, Character.class, Short.class,
+                               Integer.class, Long.class, Float.class, Double.class};
+        Class<?>[] primitives = {boolean.class, byte.class, char.class, short.class,
+                                 int.class, long.class, float.class, double.class};
+        for (int i = 0; i < wrappers.length; i++) {
+            if (wrappers[i] == wrapper) return primitives[i];
+        }
+        return null;
+    }
+
+    // like JDI2JSON.displayName
+    private static String displayName(Class<?> type) {
+        String fullName = type.getName();
+        if (fullName.indexOf("$") > 0) {
+            if (fullName.contains("$$Lambda")) {
+                fullName = "&lambda;" + fullName.substring(fullName.indexOf("$$Lambda") + 9);
+                Class<?>[] interfaces = type.getInterfaces();
+                if (interfaces.length > 0) {
+                    String interf = interfaces[0].getName();
+                    if (interf.startsWith("java.util.function."))
+                        interf = interf.substring(19);
+                    fullName += " [" + interf + "]";
+                }
+            } else {
+                fullName = fullName.substring(1 + fullName.indexOf('$'));
+                if (fullName.matches("[0-9]+")) {
+                    fullName = "anonymous class " + fullName;
+                } else if (fullName.substring(0, 1).matches("[0-9]+")) {
+                    fullName = "local class " + fullName.substring(1);
+                }
+            }
+        }
+        return fullName;
+    }
+
+    /**
+     * The fields JDI's ReferenceType.visibleFields() lists: the declared
+     * ones, then the inherited ones they don't hide, leaving out names
+     * inherited from more than one supertype.
+     */
+    private static List<Field> visibleFields(Class<?> type) {
+        List<Field> visible = new ArrayList<>();
+        Map<String, Field> byName = new HashMap<>();
+        List<String> ambiguous = new ArrayList<>();
+
+        List<Class<?>> inherited = new ArrayList<>();
+        if (type.getSuperclass() != null) {
+            inherited.add(type.getSuperclass());
+        }
+        inherited.addAll(Arrays.asList(type.getInterfaces()));
+        for (Class<?> supertype : inherited) {
+            for (Field f : visibleFields(supertype)) {
+                String name = f.getName();
+                if (ambiguous.contains(name)) continue;
+                Field duplicate = byName.get(name);
+                if (duplicate == null) {
+                    visible.add(f);
+                    byName.put(name, f);
+                } else if ( ! f.equals(duplicate)) {
+                    ambiguous.add(name);
+                    byName.remove(name);
+                    visible.remove(duplicate);
+                }
+            }
+        }
+
+        List<Field> result = new ArrayList<>(Arrays.asList(type.getDeclaredFields()));
+        for (Field f : result) {
+            Field hidden = byName.get(f.getName());
+            if (hidden != null) {
+                visible.remove(hidden);
+            }
+        }
+        result.addAll(visible);
+        return result;
+    }
+
+    /* handing over the records */
+
+    private static void append(String record) {
+        int needed = length + record.length() + 1;
+        if (needed > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+        }
+        record.getChars(0, record.length(), buffer, length);
+        length += record.length();
+        buffer[length++] = '\n';
+    }
+
+    private static void drain() {
+        if (length == 0) return;
+        drainedText = new String(buffer, 0, length);
+        length = 0;
+        drained();
+        drainedText = null;
+    }
+
+    /**
+     * Counts the bytes written to one of the debuggee's pipes.
+     */
+    private static class Counting extends FilterOutputStream {
+        long count = 0;
+
+        Counting(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+public class DeepRecursion {
+    public static int depth(int n) {
+        if (n == 0) {
+            return 0;
+        }
+        return 1 + depth(n - 1);
+    }
+
+    public static void main(String[] args) {
+        // deeper than MAX_STACK_SIZE, so the trace ends at the stack limit
+        System.out.println(depth(100));
+    }
+}
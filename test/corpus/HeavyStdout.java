@@ -0,0 +1,11 @@
+public class HeavyStdout {
+    public static void main(String[] args) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            line.append('x');
+        }
+        for (int i = 0; i < 100; i++) {
+            System.out.println(i + ": " + line);
+        }
+    }
+}
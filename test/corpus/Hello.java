@@ -0,0 +1,6 @@
+public class Hello {
+    public static void main(String[] args) {
+        String greeting = "Hello";
+        System.out.println(greeting + ", world!");
+    }
+}
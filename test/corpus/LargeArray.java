@@ -0,0 +1,13 @@
+public class LargeArray {
+    public static void main(String[] args) {
+        int[] values = new int[100000];
+        for (int i = 0; i < values.length; i += 1000) {
+            values[i] = i;
+        }
+        long sum = 0;
+        for (int i = 0; i < values.length; i += 5000) {
+            sum += values[i];
+        }
+        System.out.println(sum);
+    }
+}
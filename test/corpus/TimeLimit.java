@@ -0,0 +1,6 @@
+public class TimeLimit {
+    public static void main(String[] args) {
+        // nothing changes from step to step, so only the time limit ends it
+        while (true) { }
+    }
+}
@@ -9,36 +9,36 @@ import sys
 import json
 import re
 
-if len(sys.argv) == 1:
-    print("Usage: %s File1.java File2.java ..." % sys.argv[0])
+def jobForFiles(filePaths):
+    '''Returns the job (as a dict) for the given .java files.'''
+    objectifiedFiles = []
 
-filePaths = sys.argv[1:]
+    for path in filePaths:
+        objectFile = {}
 
-objectifiedFiles = []
+        # Strip out just the base name - we don't include the ".java"
+        match = re.search('([A-Za-z0-9\._]+)\.java$', path)
 
-for path in filePaths:
-    objectFile = {}
+        if not match:
+            print('Invalid file name: ' + path)
+            sys.exit(1)
 
-    # Strip out just the base name - we don't include the ".java"
-    match = re.search('([A-Za-z0-9\._]+)\.java$', path)
+        objectFile['name'] = match.group(1)
 
-    if not match:
-        print('Invalid file name: ' + path)
-        sys.exit(1)
+        with open(path) as f:
+            objectFile['code'] = f.read()
 
-    objectFile['name'] = match.group(1)
+        objectifiedFiles.append(objectFile)
 
-    with open(path) as f:
-        objectFile['code'] = f.read()
+    return {
+        'files': objectifiedFiles,
+        'options': {},
+        'args': [],
+        'stdin': '',
+    }
 
-    objectifiedFiles.append(objectFile)
-
-data = {
-    'files': objectifiedFiles,
-    'options': {},
-    'args': [],
-    'stdin': '',
-}
-
-print(json.dumps(data, indent=4))
+if __name__ == '__main__':
+    if len(sys.argv) == 1:
+        print("Usage: %s File1.java File2.java ..." % sys.argv[0])
 
+    print(json.dumps(jobForFiles(sys.argv[1:]), indent=4))
@@ -0,0 +1,234 @@
+#!/usr/bin/env python3
+
+'''
+Replays a corpus of submissions through run.sh (traceprinter.InMemory),
+several at a time, and reports how long they took and how much memory
+and output they needed.
+
+Usage: ./test/loadHarness.py [options] [File1.java File2.java ...]
+
+Without files, every .java file in test/corpus is used. Each file is one
+submission (named after the file, as with generateJailInput.py). Run it
+from the directory holding run.sh. See --help for the options.
+'''
+
+import os
+import sys
+import json
+import math
+import time
+import argparse
+import threading
+import subprocess
+from concurrent.futures import ThreadPoolExecutor
+
+from generateJailInput import jobForFiles
+
+corpusDir = os.path.join(os.path.dirname(os.path.abspath(__file__)), 'corpus')
+
+# how often to look at the memory of a running job
+sampleSeconds = 0.05
+
+def readPeakRssKb(pid):
+    '''Returns the peak resident set size (VmHWM) of a process, in kB,
+    or 0 if it has already exited.'''
+    try:
+        with open('/proc/%d/status' % pid) as f:
+            for line in f:
+                if line.startswith('VmHWM:'):
+                    return int(line.split()[1])
+    except (IOError, ValueError):
+        pass
+    return 0
+
+def childPids(pid):
+    '''Returns the pids of the children of a process.'''
+    result = []
+    try:
+        for task in os.listdir('/proc/%d/task' % pid):
+            with open('/proc/%d/task/%s/children' % (pid, task)) as f:
+                result += [int(child) for child in f.read().split()]
+    except (IOError, ValueError):
+        pass
+    return result
+
+def isJava(pid):
+    try:
+        with open('/proc/%d/comm' % pid) as f:
+            return f.read().strip() == 'java'
+    except IOError:
+        return False
+
+def javaDescendants(pid):
+    '''Returns the java processes under pid, parents first. Through run.sh,
+    the first is the debugger and the ones it launched are debuggees.'''
+    result = []
+    pending = [pid]
+    while pending:
+        current = pending.pop(0)
+        if isJava(current):
+            result.append(current)
+        pending += childPids(current)
+    return result
+
+def termination(output):
+    '''Works out how a trace ended from its last step.'''
+    try:
+        trace = json.loads(output)['trace']
+    except (ValueError, KeyError):
+        return 'unparseable'
+    if not trace:
+        return 'empty'
+    last = trace[-1]
+    message = last.get('exception_msg', '')
+    if last.get('event') == 'uncaught_exception' and 'stack_to_render' not in last:
+        return 'compile_error'
+    if last.get('event') == 'instruction_limit_reached':
+        if 'time limit' in message:
+            return 'time_limit'
+        if 'stack size' in message:
+            return 'stack_limit'
+        return 'step_limit'
+    if last.get('event') in ('exception', 'uncaught_exception'):
+        return 'uncaught_exception'
+    return 'exit'
+
+def runJob(command, name, job):
+    '''Runs one submission and measures it.'''
+    start = time.time()
+    process = subprocess.Popen(command, shell=True, stdin=subprocess.PIPE,
+                               stdout=subprocess.PIPE, stderr=subprocess.PIPE)
+    peaks = {}
+    roles = {}
+    done = threading.Event()
+
+    def sample():
+        while not done.is_set():
+            pids = javaDescendants(process.pid)
+            for i, pid in enumerate(pids):
+                roles.setdefault(pid, 'debugger' if i == 0 else 'debuggee')
+                peaks[pid] = max(peaks.get(pid, 0), readPeakRssKb(pid))
+            done.wait(sampleSeconds)
+
+    sampler = threading.Thread(target=sample)
+    sampler.start()
+    stdout, stderr = process.communicate(json.dumps(job).encode('utf-8'))
+    latency = time.time() - start
+    done.set()
+    sampler.join()
+
+    debuggerKb = [peaks[pid] for pid in peaks if roles[pid] == 'debugger']
+    debuggeeKb = [peaks[pid] for pid in peaks if roles[pid] == 'debuggee']
+    return {
+        'name': name,
+        'latencySeconds': latency,
+        'exitCode': process.returncode,
+        'outputBytes': len(stdout),
+        'termination': termination(stdout.decode('utf-8', 'replace')),
+        'debuggerPeakRssKb': max(debuggerKb) if debuggerKb else 0,
+        'debuggeePeakRssKb': max(debuggeeKb) if debuggeeKb else 0,
+    }
+
+def percentile(values, fraction):
+    '''Nearest-rank percentile of a list of numbers.'''
+    if not values:
+        return 0
+    ordered = sorted(values)
+    rank = max(1, int(math.ceil(fraction * len(ordered))))
+    return ordered[rank - 1]
+
+def summarize(results, wallSeconds=None):
+    '''Latency percentiles, peak memory and output size of some jobs, and
+    their throughput if they ran for wallSeconds in all.'''
+    latencies = [r['latencySeconds'] for r in results]
+    outputs = [r['outputBytes'] for r in results]
+    summary = {
+        'jobs': len(results),
+        'p50Seconds': percentile(latencies, 0.50),
+        'p95Seconds': percentile(latencies, 0.95),
+        'p99Seconds': percentile(latencies, 0.99),
+        'maxSeconds': max(latencies) if latencies else 0,
+        'meanOutputBytes': sum(outputs) / len(outputs) if outputs else 0,
+        'debuggerPeakRssKb': max([r['debuggerPeakRssKb'] for r in results] or [0]),
+        'debuggeePeakRssKb': max([r['debuggeePeakRssKb'] for r in results] or [0]),
+    }
+    if wallSeconds:
+        summary['wallSeconds'] = wallSeconds
+        summary['jobsPerSecond'] = len(results) / wallSeconds
+    return summary
+
+def printSummary(title, summary, baseline=None):
+    print('{0}: {1} jobs'.format(title, summary['jobs']))
+    for key in ['jobsPerSecond', 'p50Seconds', 'p95Seconds', 'p99Seconds',
+                'maxSeconds', 'meanOutputBytes', 'debuggerPeakRssKb',
+                'debuggeePeakRssKb']:
+        if key not in summary:
+            continue
+        line = '    {0:<20}{1:>14.3f}'.format(key, summary[key])
+        if baseline and baseline.get(key):
+            change = (summary[key] - baseline[key]) / baseline[key] * 100
+            line += '  ({0:+.1f}% vs baseline)'.format(change)
+        print(line)
+
+def main():
+    parser = argparse.ArgumentParser(
+        description='Load and latency harness for run.sh.')
+    parser.add_argument('files', nargs='*',
+                        help='submissions (default: test/corpus/*.java)')
+    parser.add_argument('--command', default='./run.sh',
+                        help='what to pipe each job into (default: ./run.sh)')
+    parser.add_argument('--concurrency', type=int, default=4,
+                        help='jobs run at once (default: 4)')
+    parser.add_argument('--repeat', type=int, default=3,
+                        help='times each submission is run (default: 3)')
+    parser.add_argument('--out',
+                        help='save the results as JSON to this file')
+    parser.add_argument('--baseline',
+                        help='results saved by an earlier run, to compare with')
+    args = parser.parse_args()
+
+    files = args.files or sorted(
+        os.path.join(corpusDir, f) for f in os.listdir(corpusDir)
+        if f.endswith('.java'))
+    jobs = []
+    for path in files:
+        name = os.path.basename(path)[:-len('.java')]
+        jobs += [(name, jobForFiles([path]))] * args.repeat
+
+    start = time.time()
+    with ThreadPoolExecutor(max_workers=args.concurrency) as executor:
+        results = list(executor.map(
+            lambda nameAndJob: runJob(args.command, *nameAndJob), jobs))
+    wallSeconds = time.time() - start
+
+    report = {
+        'command': args.command,
+        'concurrency': args.concurrency,
+        'summary': summarize(results, wallSeconds),
+        'byProgram': {},
+        'jobs': results,
+    }
+    for name in sorted(set(r['name'] for r in results)):
+        ofName = [r for r in results if r['name'] == name]
+        report['byProgram'][name] = summarize(ofName)
+        report['byProgram'][name]['terminations'] = sorted(
+            set(r['termination'] for r in ofName))
+
+    baseline = None
+    if args.baseline:
+        with open(args.baseline) as f:
+            baseline = json.load(f)
+
+    printSummary('All', report['summary'],
+                 baseline and baseline['summary'])
+    for name, summary in report['byProgram'].items():
+        printSummary('{0} ({1})'.format(name, ', '.join(summary['terminations'])),
+                     summary,
+                     baseline and baseline['byProgram'].get(name))
+
+    if args.out:
+        with open(args.out, 'w') as f:
+            json.dump(report, f, indent=4)
+
+if __name__ == '__main__':
+    main()
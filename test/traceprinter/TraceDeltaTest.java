@@ -0,0 +1,97 @@
+/*****************************************************************************
+
+traceprinter: a Java package to print traces of Java programs
+David Pritchard (daveagp@gmail.com), created May 2013
+
+The contents of this directory are released under the GNU Affero
+General Public License, versions 3 or later. See LICENSE or visit:
+http://www.gnu.org/licenses/agpl.html
+
+See README for documentation on this package.
+
+******************************************************************************/
+
+package traceprinter;
+
+import java.io.*;
+
+import javax.json.*;
+
+/**
+ * Checks that decoding a delta trace gives back the trace it was made
+ * from. Run with "ant test".
+ */
+public class TraceDeltaTest {
+    public static void main(String[] args) {
+        int failures = 0;
+
+        // the loop variable i goes out of scope, and so does a frame key
+        failures += roundTrip("scope exit",
+            step(4, frame("main:4", "{'args':['REF',1],'i':0}", "['args','i']",
+                          "'is_zombie':false")),
+            step(5, frame("main:5", "{'args':['REF',1],'i':1}", "['args','i']",
+                          "'is_zombie':false")),
+            step(7, frame("main:7", "{'args':['REF',1]}", "['args']", null)));
+
+        // a call and its return, and a frame key that appears
+        failures += roundTrip("call and return",
+            step(3, frame("main:3", "{'x':1}", "['x']", null)),
+            step(9, frame("f:9", "{'n':1}", "['n']", null),
+                    frame("main:3", "{'x':1}", "['x']", null)),
+            step(4, frame("main:4", "{'x':1,'y':2}", "['x','y']",
+                          "'is_parent':true")));
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("TraceDeltaTest: all passed");
+    }
+
+    private static int roundTrip(String name, JsonObject... steps) {
+        JsonArrayBuilder trace = Json.createArrayBuilder();
+        JsonArrayBuilder encoded = Json.createArrayBuilder();
+        TraceDelta delta = new TraceDelta();
+        for (JsonObject step : steps) {
+            trace.add(step);
+            encoded.add(delta.encode(step));
+        }
+        JsonArray expected = trace.build();
+        JsonArray decoded = TraceDelta.decode(encoded.build());
+        if (decoded.equals(expected)) {
+            System.out.println("ok: " + name);
+            return 0;
+        }
+        System.out.println("FAILED: " + name);
+        System.out.println("  expected " + expected);
+        System.out.println("  got      " + decoded);
+        return 1;
+    }
+
+    // JSON with ' for ", to keep the literals short
+    private static JsonObject parse(String json) {
+        return Json.createReader(new StringReader(json.replace('\'', '"')))
+            .readObject();
+    }
+
+    private static String frame(String funcName, String locals,
+                                String varnames, String extra) {
+        return "{'func_name':'" + funcName + "'," +
+            "'encoded_locals':" + locals + "," +
+            "'ordered_varnames':" + varnames + "," +
+            "'parent_frame_id_list':[]," +
+            (extra == null ? "" : extra + ",") +
+            "'is_highlighted':true}";
+    }
+
+    private static JsonObject step(int line, String... frames) {
+        StringBuilder stack = new StringBuilder();
+        for (String frame : frames) {
+            stack.append(stack.length() == 0 ? "" : ",").append(frame);
+        }
+        return parse("{'stdout':'','event':'step_line','line':" + line + "," +
+                     "'stack_to_render':[" + stack + "]," +
+                     "'globals':{},'ordered_globals':[]," +
+                     "'heap':{'1':['LIST']}}");
+    }
+}